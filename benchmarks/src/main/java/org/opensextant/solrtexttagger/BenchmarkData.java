@@ -0,0 +1,191 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.LowerCaseFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.lucene70.Lucene70Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Generates the data the benchmarks use: a gazetteer of names made of words from a synthetic
+ * vocabulary, an index of it whose tag field uses the FST50 postings format (as recommended), and
+ * text mentioning some of the names.  It's deterministic for a given seed.
+ */
+class BenchmarkData {
+
+  static final String FIELD = "name_tag";
+
+  private static final String[] SYLLABLES = {
+      "ba", "ko", "ri", "tan", "mel", "so", "vu", "del", "ar", "ne", "qui", "lo", "zen", "pa",
+      "ti", "gor", "wa", "ez", "mun", "sha", "el", "dor", "fi", "ul"};
+
+  /** Index analysis: each name is indexed as one term; see {@link ConcatenateFilter}. */
+  static final Analyzer INDEX_ANALYZER = new Analyzer() {
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+      StandardTokenizer tokenizer = new StandardTokenizer();
+      return new TokenStreamComponents(tokenizer,
+              new ConcatenateFilter(new LowerCaseFilter(tokenizer)));
+    }
+  };
+
+  /** Query analysis, for the text being tagged. */
+  static final Analyzer QUERY_ANALYZER = new Analyzer() {
+    @Override
+    protected TokenStreamComponents createComponents(String fieldName) {
+      StandardTokenizer tokenizer = new StandardTokenizer();
+      TokenStream result = new LowerCaseFilter(tokenizer);
+      return new TokenStreamComponents(tokenizer, result);
+    }
+  };
+
+  private final Random random;
+  private final String[] vocabulary;
+  private final int[] wordCountWeights;//index is the number of words in a name
+
+  /**
+   * @param vocabularySize number of distinct words.
+   * @param wordCounts the distribution of the number of words in a name, like "1:30,2:45,3:25"
+   *                   which means 30% of the names have one word, 45% two, and 25% three.
+   */
+  BenchmarkData(long seed, int vocabularySize, String wordCounts) {
+    this.random = new Random(seed);
+    this.vocabulary = new String[vocabularySize];
+    for (int i = 0; i < vocabularySize; i++) {
+      vocabulary[i] = randomWord();
+    }
+    this.wordCountWeights = parseWordCounts(wordCounts);
+  }
+
+  private static int[] parseWordCounts(String wordCounts) {
+    final String[] pairs = wordCounts.split(",");
+    int maxWords = 0;
+    for (String pair : pairs) {
+      maxWords = Math.max(maxWords, Integer.parseInt(pair.split(":")[0].trim()));
+    }
+    final int[] weights = new int[maxWords + 1];
+    for (String pair : pairs) {
+      final String[] wordsAndWeight = pair.split(":");
+      weights[Integer.parseInt(wordsAndWeight[0].trim())] = Integer.parseInt(wordsAndWeight[1].trim());
+    }
+    return weights;
+  }
+
+  private String randomWord() {
+    final int numSyllables = 1 + random.nextInt(4);
+    final StringBuilder word = new StringBuilder();
+    for (int i = 0; i < numSyllables; i++) {
+      word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+    }
+    return word.toString();
+  }
+
+  /** A name with a number of words drawn from the configured distribution. */
+  String randomName() {
+    int total = 0;
+    for (int weight : wordCountWeights) {
+      total += weight;
+    }
+    int r = random.nextInt(total);
+    int numWords = 1;
+    for (int i = 0; i < wordCountWeights.length; i++) {
+      r -= wordCountWeights[i];
+      if (r < 0) {
+        numWords = Math.max(i, 1);
+        break;
+      }
+    }
+    final StringBuilder name = new StringBuilder();
+    for (int i = 0; i < numWords; i++) {
+      if (i > 0)
+        name.append(' ');
+      name.append(vocabulary[random.nextInt(vocabulary.length)]);
+    }
+    return name.toString();
+  }
+
+  /** Indexes a gazetteer of the given number of names; one document each. */
+  Directory buildIndex(Path path, int numNames) throws IOException {
+    final Directory directory = FSDirectory.open(path);
+    final IndexWriterConfig config = new IndexWriterConfig(INDEX_ANALYZER);
+    config.setCodec(new Lucene70Codec() {
+      @Override
+      public PostingsFormat getPostingsFormatForField(String field) {
+        return PostingsFormat.forName("FST50");
+      }
+    });
+    config.setRAMBufferSizeMB(256);
+    final FieldType fieldType = new FieldType();
+    fieldType.setIndexOptions(IndexOptions.DOCS);
+    fieldType.setOmitNorms(true);
+    fieldType.setTokenized(true);
+    fieldType.freeze();
+    try (IndexWriter writer = new IndexWriter(directory, config)) {
+      for (int i = 0; i < numNames; i++) {
+        final Document doc = new Document();
+        doc.add(new Field(FIELD, randomName(), fieldType));
+        writer.addDocument(doc);
+      }
+      writer.forceMerge(1);
+    }
+    return directory;
+  }
+
+  /**
+   * Text of about the given number of words, where the given fraction of them are the start of a
+   * name, and the rest are vocabulary words or a filler word no name has.
+   */
+  String randomText(int numWords, double nameRatio) {
+    final StringBuilder text = new StringBuilder(numWords * 8);
+    for (int i = 0; i < numWords; i++) {
+      if (i > 0)
+        text.append(i % 20 == 0 ? ". " : " ");
+      final double r = random.nextDouble();
+      if (r < nameRatio)
+        text.append(randomName());
+      else if (r < 0.5)
+        text.append(vocabulary[random.nextInt(vocabulary.length)]);
+      else
+        text.append("the");
+    }
+    return text.toString();
+  }
+
+  Random getRandom() {
+    return random;
+  }
+}
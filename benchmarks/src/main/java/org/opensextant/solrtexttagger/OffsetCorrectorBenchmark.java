@@ -0,0 +1,145 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the {@link OffsetCorrector}s: building one from a generated document of nested
+ * markup, then correcting the offsets of some of its words as the tagger would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OffsetCorrectorBenchmark {
+
+  /** Number of words in the document. */
+  @Param({"10000"})
+  public int docWords;
+
+  /** Maximum depth of nested elements. */
+  @Param({"8"})
+  public int maxDepth;
+
+  /** Fraction of the words that get tagged (and so corrected). */
+  @Param({"0.05"})
+  public double tagRatio;
+
+  private String docText;
+  private int[] tagOffsets;//pairs of start & end offsets
+
+  @Setup(Level.Trial)
+  public void setup() {
+    final Random random = new Random(42);
+    final StringBuilder doc = new StringBuilder(docWords * 16);
+    final String[] elements = {"div", "p", "b", "em", "span"};
+    final String[] open = new String[maxDepth];
+    int depth = 0;
+    int numTags = 0;
+    int[] offsets = new int[16];
+    doc.append("<doc>");
+    for (int i = 0; i < docWords; i++) {
+      final int r = random.nextInt(10);
+      if (r < 2 && depth < maxDepth) {
+        open[depth] = elements[random.nextInt(elements.length)];
+        doc.append('<').append(open[depth++]).append('>');
+      } else if (r < 4 && depth > 0) {
+        doc.append("</").append(open[--depth]).append('>');
+      } else if (r == 4) {
+        doc.append("<br/>");
+      }
+      if (random.nextDouble() < tagRatio) {
+        if (numTags * 2 == offsets.length)
+          offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        offsets[numTags * 2] = doc.length();
+        doc.append("word").append(i);
+        offsets[numTags * 2 + 1] = doc.length();
+        numTags++;
+      } else {
+        doc.append("word").append(i);
+      }
+      doc.append(random.nextInt(4) == 0 ? "  \n " : " ");
+    }
+    while (depth > 0) {
+      doc.append("</").append(open[--depth]).append('>');
+    }
+    doc.append("</doc>");
+    docText = doc.toString();
+    tagOffsets = Arrays.copyOf(offsets, numTags * 2);
+  }
+
+  /** Returns the number of corrected pairs. */
+  private int correctAll(OffsetCorrector corrector) {
+    int numCorrected = 0;
+    for (int i = 0; i < tagOffsets.length; i += 2) {
+      if (corrector.correctPair(tagOffsets[i], tagOffsets[i + 1]) != null)
+        numCorrected++;
+    }
+    return numCorrected;
+  }
+
+  @Benchmark
+  public int xml() throws XMLStreamException {
+    return correctAll(new XmlOffsetCorrector(docText));
+  }
+
+  @Benchmark
+  public int html() {
+    return correctAll(new HtmlOffsetCorrector(docText, null));
+  }
+
+  /** The text is read thru the corrector as the analyzer would, then the pairs are corrected. */
+  @Benchmark
+  public int streamingHtml() throws IOException {
+    final StreamingHtmlOffsetCorrector corrector =
+            new StreamingHtmlOffsetCorrector(new StringReader(docText), null);
+    final char[] buffer = new char[4096];
+    try (Reader reader = corrector.getReader()) {
+      while (reader.read(buffer) != -1) {
+        //just consume it
+      }
+    }
+    return correctAll(corrector);
+  }
+}
@@ -0,0 +1,109 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks each {@link TagClusterReducer} on a cluster of overlapping tags.  Building the
+ * cluster's linked list is included since it's small next to reducing a large cluster.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagClusterReducerBenchmark {
+
+  @Param({"ALL", "NO_SUB", "LONGEST_DOMINANT_RIGHT"})
+  public String overlaps;
+
+  /** Number of tags in the cluster. */
+  @Param({"10", "100", "1000"})
+  public int clusterSize;
+
+  private TagClusterReducer reducer;
+  private int[] startOffsets;
+  private int[] endOffsets;
+
+  static TagClusterReducer reducer(String overlaps) {
+    switch (overlaps) {
+      case "ALL": return TagClusterReducer.ALL;
+      case "NO_SUB": return TagClusterReducer.NO_SUB;
+      case "LONGEST_DOMINANT_RIGHT": return TagClusterReducer.LONGEST_DOMINANT_RIGHT;
+      default: throw new IllegalArgumentException("unknown overlaps: " + overlaps);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    reducer = reducer(overlaps);
+    final Random random = new Random(42);
+    // tags are in start offset order, and each overlaps a previous one (it's a cluster)
+    startOffsets = new int[clusterSize];
+    endOffsets = new int[clusterSize];
+    int maxEnd = 0;
+    for (int i = 0; i < clusterSize; i++) {
+      final int start = i == 0 ? 0
+              : startOffsets[i - 1] + random.nextInt(Math.max(maxEnd - startOffsets[i - 1], 1));
+      startOffsets[i] = start;
+      endOffsets[i] = start + 1 + random.nextInt(40);
+      maxEnd = Math.max(maxEnd, endOffsets[i]);
+    }
+  }
+
+  /** Returns the number of remaining tags. */
+  @Benchmark
+  public int reduce() {
+    final TagLL[] head = new TagLL[1];
+    TagLL tail = null;
+    for (int i = 0; i < clusterSize; i++) {
+      TagLL tag = new TagLL(head, null, startOffsets[i], endOffsets[i], null);
+      if (tail == null)
+        head[0] = tag;
+      else
+        tail.addAfterLL(tag);
+      tail = tag;
+    }
+    reducer.reduce(head);
+    int numTags = 0;
+    for (TagLL t = head[0]; t != null; t = t.nextTag) {
+      numTags++;
+    }
+    return numTags;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.IOUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@link Tagger#process()}: looking up the names in a text against a gazetteer index.
+ * The index is built once per trial, which for millions of names takes a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaggerBenchmark {
+
+  /** Number of names in the gazetteer. */
+  @Param({"100000", "1000000", "10000000"})
+  public int numNames;
+
+  /** Distribution of the number of words in a name; see {@link BenchmarkData}. */
+  @Param({"1:30,2:45,3:20,4:5"})
+  public String wordCounts;
+
+  @Param({"50000"})
+  public int vocabularySize;
+
+  /** Number of words in the text to tag. */
+  @Param({"10000"})
+  public int textWords;
+
+  /** Fraction of the text's words that start a name. */
+  @Param({"0.1"})
+  public double nameRatio;
+
+  @Param({"NO_SUB"})
+  public String overlaps;
+
+  private Path indexPath;
+  private Directory directory;
+  private DirectoryReader reader;
+  private Terms terms;
+  private String text;
+  private TagClusterReducer reducer;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    BenchmarkData data = new BenchmarkData(42, vocabularySize, wordCounts);
+    indexPath = Files.createTempDirectory("taggerBenchmark");
+    directory = data.buildIndex(indexPath, numNames);
+    reader = DirectoryReader.open(directory);
+    terms = MultiFields.getTerms(reader, BenchmarkData.FIELD);
+    text = data.randomText(textWords, nameRatio);
+    reducer = TagClusterReducerBenchmark.reducer(overlaps);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    IOUtils.close(reader, directory);
+    IOUtils.rm(indexPath);
+  }
+
+  /** Returns the number of tags. */
+  @Benchmark
+  public int process() throws IOException {
+    final int[] numTags = new int[1];
+    try (TokenStream tokenStream = BenchmarkData.QUERY_ANALYZER.tokenStream("", text)) {
+      Tagger tagger = new Tagger(terms, null, tokenStream, reducer, false, false) {
+        @Override
+        protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
+          numTags[0]++;
+        }
+      };
+      tagger.enableDocIdsCache(2000);
+      tagger.process();
+    }
+    return numTags[0];
+  }
+}
@@ -0,0 +1,192 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of a tag field's terms (phrases) to the docIds that {@link TermPrefixCursor} would
+ * otherwise read from the postings.  It might be shared across requests, thus the docIds must be
+ * treated as immutable.  The phrases put into it are copies that aren't modified afterwards.
+ * <p>
+ * Besides a simple one for a single request, there's support for an optional Solr user cache.
+ * Being a searcher-lifetime cache configured in solrconfig.xml, it has the usual eviction,
+ * auto-warming, and statistics.  The docIds depend on the field, the filter queries, and whether
+ * it's a segment's terms or the top-level terms, so these are part of the key too.
+ */
+public abstract class DocIdsCache {
+
+  /** The docIds for this phrase, or null if not cached. */
+  public abstract IntsRef get(BytesRef phrase);
+
+  public abstract void put(BytesRef phrase, IntsRef docIds);
+
+  /** A new cache backed by a HashMap. It isn't thread-safe. */
+  public static DocIdsCache newHashMap(int initSize) {
+    final Map<BytesRef, IntsRef> map = new HashMap<>(initSize);
+    return new DocIdsCache() {
+      @Override
+      public IntsRef get(BytesRef phrase) {
+        return map.get(phrase);
+      }
+
+      @Override
+      public void put(BytesRef phrase, IntsRef docIds) {
+        map.put(phrase, docIds);
+      }
+    };
+  }
+
+  /**
+   * Returns a view of the Solr cache for the terms of this segment, or the top-level terms.
+   * @param filterQueries the filter queries that restrict the docIds, or null for live docs.
+   * @param leaf the segment of the Terms, or null for the top-level Terms.
+   */
+  static DocIdsCache view(SolrCache<Key, IntsRef> cache, String field,
+                          List<Query> filterQueries, LeafReaderContext leaf) {
+    final Object segmentKey = leaf == null ? null : segmentKey(leaf);
+    return new DocIdsCache() {
+      @Override
+      public IntsRef get(BytesRef phrase) {
+        return cache.get(new Key(field, filterQueries, segmentKey, phrase));
+      }
+
+      @Override
+      public void put(BytesRef phrase, IntsRef docIds) {
+        cache.put(new Key(field, filterQueries, segmentKey, phrase), docIds);
+      }
+    };
+  }
+
+  /** Identifies the segment across searchers, unlike its ordinal.  The cache is per-searcher so
+   * it needn't reflect the segment's deletes. */
+  private static Object segmentKey(LeafReaderContext leaf) {
+    final IndexReader.CacheHelper cacheHelper = leaf.reader().getCoreCacheHelper();
+    return cacheHelper != null ? cacheHelper.getKey() : leaf.reader();
+  }
+
+  /** Cache key. Immutable, provided the phrase isn't modified. */
+  static final class Key {
+    final String field;
+    final List<Query> filterQueries;//null if none
+    final Object segmentKey;//null if top-level
+    final BytesRef phrase;
+    private final int hash;
+
+    Key(String field, List<Query> filterQueries, Object segmentKey, BytesRef phrase) {
+      this.field = field;
+      this.filterQueries = filterQueries;
+      this.segmentKey = segmentKey;
+      this.phrase = phrase;
+      int h = field.hashCode();
+      h = 31 * h + (filterQueries == null ? 0 : filterQueries.hashCode());
+      h = 31 * h + (segmentKey == null ? 0 : segmentKey.hashCode());
+      h = 31 * h + phrase.hashCode();
+      this.hash = h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof Key)) return false;
+      Key key = (Key) o;
+      return hash == key.hash
+              && segmentKey == key.segmentKey
+              && phrase.equals(key.phrase)
+              && field.equals(key.field)
+              && (filterQueries == null ? key.filterQueries == null
+                                        : filterQueries.equals(key.filterQueries));
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return field + (segmentKey != null ? "@" + segmentKey : "") + ":" + phrase.utf8ToString()
+              + (filterQueries == null ? "" : " fq=" + filterQueries);
+    }
+  }
+
+  /**
+   * Re-reads the docIds of the old searcher's keys from the new searcher; reference it as the
+   * cache's "regenerator".  Keys of a segment that's no longer in the new searcher (e.g. merged
+   * away) are dropped.
+   */
+  public static class Regenerator implements CacheRegenerator {
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache,
+                                  SolrCache oldCache, Object oldKey, Object oldVal)
+            throws IOException {
+      final Key key = (Key) oldKey;
+      LeafReaderContext leaf = null;
+      if (key.segmentKey != null) {
+        for (LeafReaderContext ctx : newSearcher.getIndexReader().leaves()) {
+          if (segmentKey(ctx) == key.segmentKey) {
+            leaf = ctx;
+            break;
+          }
+        }
+        if (leaf == null)
+          return true;
+      }
+      Bits docBits = key.filterQueries == null ? null
+              : TaggerRequestHandler.computeDocCorpus(newSearcher, key.filterQueries);
+      final Terms terms;
+      if (leaf == null) {
+        terms = newSearcher.getSlowAtomicReader().terms(key.field);
+        if (docBits == null)
+          docBits = newSearcher.getSlowAtomicReader().getLiveDocs();
+      } else {
+        terms = leaf.reader().terms(key.field);
+        docBits = MultiSegmentTagger.leafDocBits(leaf, docBits);
+      }
+      if (terms == null)
+        return true;
+      final TermsEnum termsEnum = terms.iterator();
+      if (termsEnum.seekExact(key.phrase)) {
+        final PostingsEnum postingsEnum = termsEnum.postings(null, PostingsEnum.NONE);
+        newCache.put(key, TermPrefixCursor.readDocIds(postingsEnum, termsEnum.docFreq(), docBits));
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import com.carrotsearch.hppc.IntArrayList;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BitUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.StringHelper;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+
+import java.io.IOException;
+
+/**
+ * A Bloom filter of the first word (the bytes before the first separator char) of every term in a
+ * tag field.  The {@link Tagger} checks it before starting a new tag so that most words of typical
+ * text (e.g. "the", "said") never seek into the terms dictionary.  False positives are possible but
+ * merely cost a seek; false negatives aren't possible.  It's immutable and thus thread-safe.
+ */
+public class FirstWordFilter {
+
+  // ~1% false positive rate.  Bits are rounded up to a power of 2, so often it's better.
+  private static final int BITS_PER_WORD = 10;
+  private static final int NUM_HASHES = 7;
+
+  private final long[] bits;
+  private final int bitMask;
+
+  private FirstWordFilter(IntArrayList hashes) {
+    final int numWords = hashes.size() / 2;
+    final int numBits = BitUtil.nextHighestPowerOfTwo(Math.max(64, numWords * BITS_PER_WORD));
+    bits = new long[numBits >>> 6];
+    bitMask = numBits - 1;
+    for (int i = 0; i < hashes.size(); i += 2) {
+      final int hash1 = hashes.get(i);
+      final int hash2 = hashes.get(i + 1);
+      for (int h = 0; h < NUM_HASHES; h++) {
+        final int bit = (hash1 + h * hash2) & bitMask;
+        bits[bit >>> 6] |= 1L << bit;
+      }
+    }
+  }
+
+  /**
+   * Builds the filter by reading all terms.  Terms sharing a first word are skipped over by
+   * seeking, so this is proportional to the number of distinct first words.
+   * @param terms the tag field's terms; if null then nothing is contained.
+   */
+  public static FirstWordFilter build(Terms terms) throws IOException {
+    final IntArrayList hashes = new IntArrayList();
+    if (terms != null) {
+      final TermsEnum termsEnum = terms.iterator();
+      final BytesRefBuilder firstWord = new BytesRefBuilder();
+      boolean hasFirstWord = false;
+      BytesRef term = termsEnum.next();
+      while (term != null) {
+        final int firstWordLen = firstWordLength(term);
+        if (hasFirstWord && firstWordLen == firstWord.length()
+                && startsWith(term, firstWord.get())) {
+          // another term starting with firstWord and the separator; skip past all of them
+          firstWord.append((byte) (TermPrefixCursor.SEPARATOR_CHAR + 1));
+          if (termsEnum.seekCeil(firstWord.get()) == TermsEnum.SeekStatus.END)
+            break;
+          hasFirstWord = false;
+          term = termsEnum.term();
+          continue;
+        }
+        firstWord.copyBytes(term.bytes, term.offset, firstWordLen);
+        hasFirstWord = true;
+        hashes.add(hash1(firstWord.get()), hash2(firstWord.get()));
+        term = termsEnum.next();
+      }
+    }
+    return new FirstWordFilter(hashes);
+  }
+
+  private static int firstWordLength(BytesRef term) {
+    for (int i = 0; i < term.length; i++) {
+      if (term.bytes[term.offset + i] == TermPrefixCursor.SEPARATOR_CHAR)
+        return i;
+    }
+    return term.length;
+  }
+
+  private static boolean startsWith(BytesRef term, BytesRef prefix) {
+    for (int i = 0; i < prefix.length; i++) {
+      if (term.bytes[term.offset + i] != prefix.bytes[prefix.offset + i])
+        return false;
+    }
+    return true;
+  }
+
+  private static int hash1(BytesRef word) {
+    return StringHelper.murmurhash3_x86_32(word, 0);
+  }
+
+  private static int hash2(BytesRef word) {
+    return StringHelper.murmurhash3_x86_32(word, 0x5bd1e995) | 1;//odd
+  }
+
+  /** Whether the word might be the first word of a term. If false, it definitely isn't. */
+  public boolean mightContain(BytesRef word) {
+    final int hash1 = hash1(word);
+    final int hash2 = hash2(word);
+    for (int h = 0; h < NUM_HASHES; h++) {
+      final int bit = (hash1 + h * hash2) & bitMask;
+      if ((bits[bit >>> 6] & (1L << bit)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  public long ramBytesUsed() {
+    return RamUsageEstimator.sizeOf(bits);
+  }
+
+  /**
+   * Rebuilds the filters of the old searcher's cache (keyed by field name) when a new searcher
+   * is opened; reference it as the cache's "regenerator".
+   */
+  public static class Regenerator implements CacheRegenerator {
+    @Override
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache,
+                                  SolrCache oldCache, Object oldKey, Object oldVal)
+            throws IOException {
+      final String field = (String) oldKey;
+      newCache.put(field, build(newSearcher.getSlowAtomicReader().terms(field)));
+      return true;
+    }
+  }
+}
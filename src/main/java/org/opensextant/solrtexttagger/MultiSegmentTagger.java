@@ -0,0 +1,453 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import com.carrotsearch.hppc.IntArrayList;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.QueryTimeout;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.function.IntFunction;
+
+/**
+ * Tags text against each segment (leaf) of an index separately, instead of against a merged
+ * multi-segment {@link Terms} whose TermsEnum must seek every segment for every lookup.  Each
+ * segment is tagged with {@link TagClusterReducer#ALL}, then the tags are merged by offset
+ * (unioning the docIds of tags with identical offsets), and finally the configured
+ * {@link TagClusterReducer} reduces each cluster of overlapping tags.  The results are the same as
+ * {@link Tagger} with a top-level Terms.  This is a callback-style API in which you implement
+ * {@link #tagCallback(int, int, Object)}; the docIds are top-level docIds, not segment ones.
+ * <p>
+ * Note that the reducer is given clusters of overlapping tags, which could be smaller than the
+ * clusters {@link Tagger} would give it. The built-in reducers don't care.
+ * <p>
+ * If an {@link Executor} is set, the segments are tagged concurrently; the merging and reducing
+ * happens in the calling thread after all segments are done.
+ */
+public abstract class MultiSegmentTagger {
+
+  private final List<LeafReaderContext> leaves;
+  private final String field;
+  private final Bits docBits;
+  private final TokenBuffer tokenBuffer;
+  private final long tokenBufferNanos;//time to analyze the text into tokenBuffer
+  private final TagClusterReducer tagClusterReducer;
+  private final boolean skipAltTokens;
+  private final boolean ignoreStopWords;
+
+  private int docIdsCacheInitSize = 0;
+  private IntFunction<DocIdsCache> docIdsCacheByLeafOrd;//null if not set
+  private FirstWordFilter firstWordFilter;
+  private int maxDocFreq = Integer.MAX_VALUE;
+  private Executor executor;//null means tag segments sequentially in the calling thread
+  private TaggerStats stats;//null if none
+  private QueryTimeout queryTimeout;//null if none
+  private boolean timedOut = false;
+  private boolean stopped = false;//see stop()
+  private volatile boolean cancelled = false;//tagging a segment failed; the others should quit
+  private int pendingStartOffset = 0;//see getPendingStartOffset
+
+  /**
+   * @param leaves the index segments, in docBase order.
+   * @param field the indexed tag field.
+   * @param docBits top-level docIds to consider, or null for all live docs.
+   * @param tokenStream the text to tag; it will be consumed here, but not closed.
+   */
+  public MultiSegmentTagger(List<LeafReaderContext> leaves, String field, Bits docBits,
+                            TokenStream tokenStream, TagClusterReducer tagClusterReducer,
+                            boolean skipAltTokens, boolean ignoreStopWords) throws IOException {
+    this.leaves = leaves;
+    this.field = field;
+    this.docBits = docBits;
+    final long startNanos = System.nanoTime();
+    this.tokenBuffer = new TokenBuffer(tokenStream);
+    this.tokenBufferNanos = System.nanoTime() - startNanos;
+    this.tagClusterReducer = tagClusterReducer;
+    this.skipAltTokens = skipAltTokens;
+    this.ignoreStopWords = ignoreStopWords;
+  }
+
+  /** See {@link Tagger#enableDocIdsCache(int)}; each segment gets its own. */
+  public void enableDocIdsCache(int initSize) {
+    docIdsCacheInitSize = initSize;
+  }
+
+  /** See {@link Tagger#setDocIdsCache(DocIdsCache)}; the function supplies the cache for the segment
+   * ordinal given.  This takes precedence over {@link #enableDocIdsCache(int)}. */
+  public void setDocIdsCache(IntFunction<DocIdsCache> docIdsCacheByLeafOrd) {
+    this.docIdsCacheByLeafOrd = docIdsCacheByLeafOrd;
+  }
+
+  /** See {@link Tagger#setFirstWordFilter(FirstWordFilter)}; a top-level filter works for each
+   * segment. */
+  public void setFirstWordFilter(FirstWordFilter firstWordFilter) {
+    this.firstWordFilter = firstWordFilter;
+  }
+
+  /** See {@link Tagger#setMaxDocFreq(int)}; it applies to the docFreq within each segment. */
+  public void setMaxDocFreq(int maxDocFreq) {
+    this.maxDocFreq = maxDocFreq;
+  }
+
+  /** Tag the segments concurrently using this executor.  The calling thread tags a segment too.
+   * A bounded executor should run rejected tasks in the calling thread, not throw. */
+  public void setExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  /** See {@link Tagger#setStats(TaggerStats)}.  Each segment accumulates its own, which are
+   * added to these once all segments are tagged. */
+  public void setStats(TaggerStats stats) {
+    this.stats = stats;
+  }
+
+  /** See {@link Tagger#setQueryTimeout(QueryTimeout)}; it's checked while tagging each segment,
+   * but not while the text is analyzed up front. */
+  public void setQueryTimeout(QueryTimeout queryTimeout) {
+    this.queryTimeout = queryTimeout;
+  }
+
+  /** See {@link Tagger#stop()}.  The segments are all tagged before any tags are emitted, so this
+   * only saves the rest of the merging and reducing. */
+  public void stop() {
+    stopped = true;
+  }
+
+  /** Whether {@link #stop()} was called. */
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  /** See {@link Tagger#isTimedOut()}. */
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+
+  /** If {@link #isTimedOut()}, the offset before which the text was tagged completely. */
+  public int getPendingStartOffset() {
+    return pendingStartOffset;
+  }
+
+  public void process() throws IOException {
+    if (stats != null) {
+      stats.analysisNanos += tokenBufferNanos;
+      stats.tokens += tokenBuffer.size();
+    }
+    if (tokenBuffer.size() == 0)
+      return;
+    final SegmentTags[] segmentTags = new SegmentTags[leaves.size()];
+    if (executor == null || segmentTags.length <= 1) {
+      for (int i = 0; i < segmentTags.length; i++) {
+        segmentTags[i] = tagSegment(leaves.get(i));
+      }
+    } else {
+      tagSegmentsConcurrently(segmentTags);
+    }
+    if (stats != null) {
+      for (SegmentTags segTags : segmentTags) {
+        if (segTags.stats != null)
+          stats.add(segTags.stats);
+      }
+    }
+    mergeAndReduce(segmentTags);
+  }
+
+  private void tagSegmentsConcurrently(SegmentTags[] segmentTags) throws IOException {
+    final List<FutureTask<SegmentTags>> tasks = new ArrayList<>(segmentTags.length - 1);
+    // a permit per finished task, so that on failure we can wait for those still running
+    final Semaphore tasksDone = new Semaphore(0);
+    boolean success = false;
+    try {
+      // submit all but the first, which we'll do in this thread
+      for (int i = 1; i < segmentTags.length; i++) {
+        final LeafReaderContext leaf = leaves.get(i);
+        FutureTask<SegmentTags> task = new FutureTask<>(() -> {
+          try {
+            return tagSegment(leaf);
+          } finally {
+            tasksDone.release();
+          }
+        });
+        executor.execute(task);
+        tasks.add(task);//only once submitted; a rejected task will never release
+      }
+      segmentTags[0] = tagSegment(leaves.get(0));
+      for (int i = 1; i < segmentTags.length; i++) {
+        segmentTags[i] = tasks.get(i - 1).get();
+      }
+      success = true;
+    } catch (InterruptedException e) {
+      throw new ThreadInterruptedException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException)
+        throw (IOException) cause;
+      if (cause instanceof RuntimeException)
+        throw (RuntimeException) cause;
+      if (cause instanceof Error)
+        throw (Error) cause;
+      throw new RuntimeException(cause);
+    } finally {
+      if (!success) {
+        // The caller will release the searcher once we throw, so the tasks must not still be using
+        // it.  Interrupting them (cancel(true)) could close the index's file channels, so instead
+        // they check this flag, and we wait for them all to finish (tasks not yet started skip).
+        cancelled = true;
+        tasksDone.acquireUninterruptibly(tasks.size());
+      }
+    }
+  }
+
+  /** Tags the buffered tokens against one segment, collecting all (un-reduced) tags. */
+  SegmentTags tagSegment(LeafReaderContext leaf) throws IOException {
+    final SegmentTags segmentTags = new SegmentTags(leaf.docBase, stats != null ? new TaggerStats() : null);
+    if (cancelled)
+      return segmentTags;
+    final Terms terms = leaf.reader().terms(field);
+    if (terms == null)
+      return segmentTags;
+    try (TokenStream tokenStream = tokenBuffer.newTokenStream()) {
+      Tagger tagger = new Tagger(terms, leafDocBits(leaf, docBits), tokenStream, TagClusterReducer.ALL,
+              skipAltTokens, ignoreStopWords) {
+        @Override
+        protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
+          segmentTags.add(startOffset, endOffset, lookupDocIds(docIdsKey));
+        }
+      };
+      if (docIdsCacheByLeafOrd != null)
+        tagger.setDocIdsCache(docIdsCacheByLeafOrd.apply(leaf.ord));
+      else
+        tagger.enableDocIdsCache(docIdsCacheInitSize);
+      tagger.setFirstWordFilter(firstWordFilter);
+      tagger.setMaxDocFreq(maxDocFreq);
+      tagger.setStats(segmentTags.stats);
+      tagger.setQueryTimeout(executor == null ? queryTimeout : new QueryTimeout() {
+        @Override
+        public boolean shouldExit() {
+          return cancelled || (queryTimeout != null && queryTimeout.shouldExit());
+        }
+
+        @Override
+        public boolean isTimeoutEnabled() {
+          return true;
+        }
+      });
+      tagger.process();
+      if (tagger.isTimedOut())
+        segmentTags.timedOutAt = tagger.getPendingStartOffset();
+    }
+    if (segmentTags.stats != null) {
+      //replaying tokenBuffer isn't analysis; process() counts that once
+      segmentTags.stats.analysisNanos = 0;
+      segmentTags.stats.tokens = 0;
+    }
+    return segmentTags;
+  }
+
+  /** The leaf's view of top-level docBits, or the leaf's live docs if docBits is null. */
+  static Bits leafDocBits(LeafReaderContext leaf, Bits docBits) {
+    if (docBits == null)
+      return leaf.reader().getLiveDocs();
+    final int docBase = leaf.docBase;
+    final int maxDoc = leaf.reader().maxDoc();
+    return new Bits() {
+      @Override
+      public boolean get(int index) {
+        return docBits.get(docBase + index);
+      }
+
+      @Override
+      public int length() {
+        return maxDoc;
+      }
+    };
+  }
+
+  /** Merges the tags of each segment, which are each in (startOffset, endOffset) order, then
+   * reduces and emits each cluster of overlapping tags. */
+  void mergeAndReduce(SegmentTags[] segmentTags) {
+    // if any segment timed out, only tags starting before this are complete
+    int cutoffOffset = Integer.MAX_VALUE;
+    for (SegmentTags segTags : segmentTags) {
+      if (segTags.timedOutAt >= 0)
+        cutoffOffset = Math.min(cutoffOffset, segTags.timedOutAt);
+    }
+    timedOut = cutoffOffset != Integer.MAX_VALUE;
+
+    final int[] upto = new int[segmentTags.length];
+    //a shared pointer to the head of the current cluster
+    final TagLL[] head = new TagLL[1];
+    //recycles tags (no cursors needed here)
+    final TagLL.Pool pool = new TagLL.Pool(head);
+    TagLL tail = null;
+    int clusterEndOffset = -1;
+
+    while (!stopped) {
+      //-- Find the lowest next tag across the segments
+      int minSeg = -1;
+      for (int s = 0; s < segmentTags.length; s++) {
+        if (upto[s] < segmentTags[s].size()
+                && (minSeg == -1 || segmentTags[s].compare(upto[s], segmentTags[minSeg], upto[minSeg]) < 0)) {
+          minSeg = s;
+        }
+      }
+      if (minSeg == -1)
+        break;
+      final int startOffset = segmentTags[minSeg].getStartOffset(upto[minSeg]);
+      final int endOffset = segmentTags[minSeg].getEndOffset(upto[minSeg]);
+      if (startOffset >= cutoffOffset)
+        break;
+
+      //-- Union the docIds of all segments having this same tag. Segments are in docBase order,
+      //   so the result is sorted.
+      int numDocIds = 0;
+      for (int s = minSeg; s < segmentTags.length; s++) {
+        if (segmentTags[s].isAt(upto[s], startOffset, endOffset))
+          numDocIds += segmentTags[s].getDocIds(upto[s]).length;
+      }
+      final IntsRef docIds = new IntsRef(numDocIds);
+      for (int s = minSeg; s < segmentTags.length; s++) {
+        if (segmentTags[s].isAt(upto[s], startOffset, endOffset)) {
+          final IntsRef segDocIds = segmentTags[s].getDocIds(upto[s]);
+          final int docBase = segmentTags[s].docBase;
+          for (int i = segDocIds.offset; i < segDocIds.offset + segDocIds.length; i++) {
+            docIds.ints[docIds.length++] = docBase + segDocIds.ints[i];
+          }
+          upto[s]++;
+        }
+      }
+
+      //-- Process the cluster if this tag doesn't overlap it
+      if (head[0] != null && startOffset >= clusterEndOffset) {
+        reduceAndEmitCluster(head);
+        pool.releaseTags();
+        clusterEndOffset = -1;
+      }
+
+      //-- Add to the end of the cluster
+      final TagLL tag = pool.newTag(null, startOffset, endOffset, docIds);
+      if (head[0] == null) {
+        head[0] = tag;
+      } else {
+        tail.addAfterLL(tag);
+      }
+      tail = tag;
+      clusterEndOffset = Math.max(clusterEndOffset, endOffset);
+    }
+
+    //-- Finish
+    if (timedOut) {
+      pendingStartOffset = cutoffOffset;
+      // a missing tag at or after the cutoff might overlap the cluster
+      if (head[0] != null && clusterEndOffset > cutoffOffset) {
+        pendingStartOffset = head[0].startOffset;
+        head[0] = null;
+      }
+    }
+    if (head[0] != null && !stopped)
+      reduceAndEmitCluster(head);
+  }
+
+  private void reduceAndEmitCluster(TagLL[] head) {
+    final long startNanos = stats != null ? System.nanoTime() : 0;
+    tagClusterReducer.reduce(head);
+    if (stats != null)
+      stats.reduceNanos += System.nanoTime() - startNanos;
+    for (TagLL t = head[0]; t != null && !stopped; t = t.nextTag) {
+      tagCallback(t.startOffset, t.endOffset, t.value);
+    }
+    head[0] = null;
+  }
+
+  /**
+   * Invoked by {@link #process()} for each tag found.  See {@link Tagger#tagCallback(int, int, Object)}.
+   *
+   * @param startOffset The character offset of the original stream where the tag starts.
+   * @param endOffset One more than the character offset of the original stream where the tag ends.
+   * @param docIdsKey A reference to the matching docIds that can be resolved via {@link #lookupDocIds(Object)}.
+   */
+  protected abstract void tagCallback(int startOffset, int endOffset, Object docIdsKey);
+
+  /**
+   * Returns a sorted array of top-level integer docIds given the corresponding key.
+   * @param docIdsKey The lookup key.
+   * @return Not null
+   */
+  protected IntsRef lookupDocIds(Object docIdsKey) {
+    return (IntsRef) docIdsKey;
+  }
+
+  /** The un-reduced tags found in one segment, in (startOffset, endOffset) order. The docIds are
+   * relative to the segment. */
+  static class SegmentTags {
+    final int docBase;
+    final TaggerStats stats;//null if none
+    int timedOutAt = -1;//the Tagger's pendingStartOffset if it timed out
+    /** startOffset and endOffset pairs */
+    private final IntArrayList offsets = new IntArrayList();
+    private final List<IntsRef> docIdsList = new ArrayList<>();
+
+    SegmentTags(int docBase, TaggerStats stats) {
+      this.docBase = docBase;
+      this.stats = stats;
+    }
+
+    void add(int startOffset, int endOffset, IntsRef docIds) {
+      assert docIdsList.isEmpty() || compare(startOffset, endOffset, size() - 1) >= 0 : "not sorted?";
+      offsets.add(startOffset, endOffset);
+      docIdsList.add(docIds);
+    }
+
+    int size() {
+      return docIdsList.size();
+    }
+
+    int getStartOffset(int idx) { return offsets.get(idx * 2); }
+    int getEndOffset(int idx) { return offsets.get(idx * 2 + 1); }
+    IntsRef getDocIds(int idx) { return docIdsList.get(idx); }
+
+    boolean isAt(int idx, int startOffset, int endOffset) {
+      return idx < size() && getStartOffset(idx) == startOffset && getEndOffset(idx) == endOffset;
+    }
+
+    private int compare(int startOffset, int endOffset, int idx) {
+      int cmp = Integer.compare(startOffset, getStartOffset(idx));
+      return cmp != 0 ? cmp : Integer.compare(endOffset, getEndOffset(idx));
+    }
+
+    int compare(int idx, SegmentTags other, int otherIdx) {
+      return other.compare(getStartOffset(idx), getEndOffset(idx), otherIdx);
+    }
+  }
+}
@@ -28,9 +28,8 @@ import java.util.Arrays;
 
 public abstract class OffsetCorrector {
 
-  //TODO support a streaming style of consuming input text so that we need not take a
-  // String. Trickier because we need to keep more information as we parse to know when tags
-  // are adjacent with/without whitespace
+  // See StreamingHtmlOffsetCorrector for a streaming style of consuming input text that need not
+  // take a String.
 
   //Data structure requirements:
   // Given a character offset:
@@ -42,7 +41,7 @@ public abstract class OffsetCorrector {
   //   * What's the char offset of the start and end of the open tag
   //   * What's the char offset of the start and end of the close tag
 
-  /** Document text. */
+  /** Document text. Null if the subclass consumes it as a stream. */
   protected final String docText;
 
   /** Array of tag info comprised of 5 int fields:
@@ -57,6 +56,15 @@ public abstract class OffsetCorrector {
 
   protected final int[] offsetPair = new int[] { -1, -1};//non-thread-safe state
 
+  private final boolean overridesDeprecatedEndOffsetCorrection =
+          OVERRIDES_DEPRECATED_END_OFFSET_CORRECTION.get(getClass());
+  private int deprecatedStartOffset = -1;//see correctEndOffsetForCloseElement(int)
+
+  /** Bit per char of docText, set if it's not whitespace. Null if there is no docText. */
+  private final long[] nonWhitespaceBits;
+  /** Number of set bits in nonWhitespaceBits before each long (a "rank" index). */
+  private final int[] nonWhitespaceRanks;
+
   /** Disjoint start and end span offsets (inclusive) of non-taggable sections. Null if none. */
   protected final IntArrayList nonTaggableOffsets;
 
@@ -66,13 +74,48 @@ public abstract class OffsetCorrector {
    * @param hasNonTaggable if there may be "non-taggable" tags to track
    */
   protected OffsetCorrector(String docText, boolean hasNonTaggable) {
+    this(docText, docText.length(), hasNonTaggable);
+  }
+
+  /**
+   * Initialize without the document text.
+   * @param guessLength approximate length of the document; used to size the data structures.
+   * @param hasNonTaggable if there may be "non-taggable" tags to track
+   */
+  protected OffsetCorrector(int guessLength, boolean hasNonTaggable) {
+    this(null, guessLength, hasNonTaggable);
+  }
+
+  private OffsetCorrector(String docText, int guessLength, boolean hasNonTaggable) {
     this.docText = docText;
-    final int guessNumElements = Math.max(docText.length() / 20, 4);
+    final int guessNumElements = Math.max(guessLength / 20, 4);
 
     tagInfo = new IntArrayList(guessNumElements * 5);
     parentChangeOffsets = new IntArrayList(guessNumElements * 2);
     parentChangeIds = new IntArrayList(guessNumElements * 2);
     nonTaggableOffsets = hasNonTaggable ? new IntArrayList(guessNumElements / 5) : null;
+
+    if (docText == null) {
+      nonWhitespaceBits = null;
+      nonWhitespaceRanks = null;
+      return;
+    }
+    // one more long than needed so that we can rank the end of the text
+    nonWhitespaceBits = new long[(docText.length() >>> 6) + 1];
+    nonWhitespaceRanks = new int[nonWhitespaceBits.length];
+    for (int i = 0; i < docText.length(); i++) {
+      if (!Character.isWhitespace(docText.charAt(i)))
+        nonWhitespaceBits[i >>> 6] |= 1L << i;
+    }
+    for (int w = 1; w < nonWhitespaceBits.length; w++) {
+      nonWhitespaceRanks[w] = nonWhitespaceRanks[w - 1] + Long.bitCount(nonWhitespaceBits[w - 1]);
+    }
+  }
+
+  /** Whether {@link #correctPair(int, int)} has seen enough of the document to correct this pair.
+   * Always true unless the document is still being consumed as a stream. */
+  public boolean isCorrectable(int leftOffset, int rightOffset) {
+    return true;
   }
 
   /** Corrects the start and end offset pair. It will return null if it can't
@@ -83,7 +126,14 @@ public abstract class OffsetCorrector {
    * <p>Note that the returned array is internally reused; just use it to examine the response.
    */
   public int[] correctPair(int leftOffset, int rightOffset) {
-    rightOffset = correctEndOffsetForCloseElement(rightOffset);
+    return correctPair(leftOffset, rightOffset, offsetPair);
+  }
+
+  /** Like {@link #correctPair(int, int)} but the result is put into the provided 2-element array,
+   * which is returned (or null).  Unlike that method, this one is thread-safe once constructed
+   * (unless the subclass consumes the document as a stream, or overrides a deprecated method). */
+  public int[] correctPair(int leftOffset, int rightOffset, int[] offsetPair) {
+    rightOffset = correctEndOffsetForCloseElement(leftOffset, rightOffset);
     if (spansNonTaggable(leftOffset, rightOffset))
       return null;
 
@@ -96,8 +146,7 @@ public abstract class OffsetCorrector {
     int iTag = startTag;
     for (; !tagEnclosesOffset(iTag, rightOffset); iTag = getParentTag(iTag)) {
       //Ensure there is nothing except whitespace thru OpenEndOff
-      int tagOpenEndOff = getOpenEndOff(iTag);
-      if (hasNonWhitespace(tagOpenEndOff, leftOffset))
+      if (hasNonWhitespaceAfterOpen(iTag, leftOffset))
         return null;
       leftOffset = getOpenStartOff(iTag);
     }
@@ -105,8 +154,7 @@ public abstract class OffsetCorrector {
     // Bump out rightOffset until we get to ancestorTag.
     for (iTag = endTag; iTag != ancestorTag; iTag = getParentTag(iTag)) {
       //Ensure there is nothing except whitespace thru CloseStartOff
-      int tagCloseStartOff = getCloseStartOff(iTag);
-      if (hasNonWhitespace(rightOffset, tagCloseStartOff))
+      if (hasNonWhitespaceBeforeClose(iTag, rightOffset))
         return null;
       rightOffset = getCloseEndOff(iTag);
     }
@@ -124,21 +172,69 @@ public abstract class OffsetCorrector {
    * {@link org.apache.lucene.analysis.charfilter.HTMLStripCharFilter}.
    *
    * See https://issues.apache.org/jira/browse/LUCENE-5734 */
+  protected int correctEndOffsetForCloseElement(int startOffset, int endOffset) {
+    if (overridesDeprecatedEndOffsetCorrection) {
+      deprecatedStartOffset = startOffset;
+      return correctEndOffsetForCloseElement(endOffset);
+    }
+    return closeElementStartOffset(startOffset, endOffset);
+  }
+
+  /** Like {@link #correctEndOffsetForCloseElement(int, int)}.  If a subclass overrides this, it's
+   * called instead of that method, with the start offset it was given available to the super
+   * implementation; but then {@link #correctPair(int, int, int[])} isn't thread-safe.
+   * @deprecated override {@link #correctEndOffsetForCloseElement(int, int)} instead */
+  @Deprecated
   protected int correctEndOffsetForCloseElement(int endOffset) {
+    if (overridesDeprecatedEndOffsetCorrection)//the subclass's override called super
+      return closeElementStartOffset(deprecatedStartOffset, endOffset);
+    return correctEndOffsetForCloseElement(deprecatedStartOffset, endOffset);
+  }
+
+  private int closeElementStartOffset(int startOffset, int endOffset) {
     if (docText.charAt(endOffset-1) == '>') {
       final int newEndOffset = docText.lastIndexOf('<', endOffset - 2);
-      if (newEndOffset > offsetPair[0])//just to be sure
+      if (newEndOffset > startOffset)//just to be sure
         return newEndOffset;
     }
     return endOffset;
   }
 
-  protected boolean hasNonWhitespace(int start, int end) {
-    for (int i = start; i < end; i++) {
-      if (!Character.isWhitespace(docText.charAt(i)))
-        return true;
+  /** Whether the class overrides the deprecated {@link #correctEndOffsetForCloseElement(int)}. */
+  private static final ClassValue<Boolean> OVERRIDES_DEPRECATED_END_OFFSET_CORRECTION =
+          new ClassValue<Boolean>() {
+    @Override
+    protected Boolean computeValue(Class<?> clazz) {
+      for (; clazz != OffsetCorrector.class; clazz = clazz.getSuperclass()) {
+        try {
+          clazz.getDeclaredMethod("correctEndOffsetForCloseElement", int.class);
+          return true;
+        } catch (NoSuchMethodException e) {
+          // check the superclass
+        }
+      }
+      return false;
     }
-    return false;
+  };
+
+  /** If there is non-whitespace between the end of the tag's open element and the offset. */
+  protected boolean hasNonWhitespaceAfterOpen(int tag, int offset) {
+    return hasNonWhitespace(getOpenEndOff(tag), offset);
+  }
+
+  /** If there is non-whitespace between the offset and the start of the tag's close element. */
+  protected boolean hasNonWhitespaceBeforeClose(int tag, int offset) {
+    return hasNonWhitespace(offset, getCloseStartOff(tag));
+  }
+
+  protected boolean hasNonWhitespace(int start, int end) {
+    return start < end && nonWhitespaceRank(end) > nonWhitespaceRank(start);
+  }
+
+  /** The number of non-whitespace chars in docText before the offset. */
+  private int nonWhitespaceRank(int off) {
+    final int w = off >>> 6;
+    return nonWhitespaceRanks[w] + Long.bitCount(nonWhitespaceBits[w] & ((1L << off) - 1));
   }
 
   protected boolean tagEnclosesOffset(int tag, int off) {
@@ -0,0 +1,285 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import com.carrotsearch.hppc.IntArrayList;
+import net.htmlparser.jericho.EndTagType;
+import net.htmlparser.jericho.Segment;
+import net.htmlparser.jericho.StartTag;
+import net.htmlparser.jericho.StartTagType;
+import net.htmlparser.jericho.StreamedSource;
+import net.htmlparser.jericho.Tag;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Like {@link HtmlOffsetCorrector} but consumes the HTML as a stream instead of a String.  The
+ * text to be tagged is read through {@link #getReader()}, and the data structures are built from
+ * each segment of markup as it's read.  Thus the document is neither buffered nor parsed in a pass
+ * of its own.  A pair of offsets can only be corrected once the markup around it has been seen;
+ * see {@link #isCorrectable(int, int)}.
+ *
+ * An element that is never closed is treated as closed at the end of the document, so while
+ * streaming it's assumed to enclose what follows it.  For HTML whose elements are closed, the
+ * corrections are the same as {@link HtmlOffsetCorrector}.
+ *
+ * Not thread-safe.
+ */
+public class StreamingHtmlOffsetCorrector extends OffsetCorrector {
+
+  private static final int GUESS_LENGTH = 10_000;
+
+  private final Set<String> nonTaggableTags;
+  private final StreamedSource source;
+  private final Iterator<Segment> segmentIterator;
+  private final Reader reader = new SegmentReader();
+
+  /** Offset of the first non-whitespace char after the tag's open element; -1 if none yet.
+   * Parallel to tag ids. */
+  private final IntArrayList firstNonWsAfterOpen;
+  /** Offset of the last non-whitespace char before the tag's close element; -1 if none.
+   * Parallel to tag ids. */
+  private final IntArrayList lastNonWsBeforeClose;
+  /** Tags we have yet to see a non-whitespace char after. */
+  private final IntArrayList awaitingNonWs = new IntArrayList();
+  /** End offsets of markup (ascending), and a parallel array of their begin offsets. */
+  private final IntArrayList markupEnds, markupBegins;
+
+  private int thisTag = 0;//document implicit tag
+  private int nonTaggablesInProgress = 0;
+  private int lastNonWs = -1;
+  private int parsedOffset = 0;//end of what's been parsed
+  private boolean finished = false;
+
+  /**
+   * Initialize based on a stream of the document.  The stream is read thru {@link #getReader()}.
+   *
+   * @param input non-null structured content.
+   * @param nonTaggableTags HTML element names that should not be "taggable" (be a part of any
+   *                        tag). These must be lower-case.
+   */
+  protected StreamingHtmlOffsetCorrector(Reader input, Set<String> nonTaggableTags)
+          throws IOException {
+    super(GUESS_LENGTH, nonTaggableTags != null);
+    this.nonTaggableTags = nonTaggableTags != null ? nonTaggableTags : Collections.emptySet();
+
+    final int guessNumElements = tagInfo.buffer.length / 5;
+    firstNonWsAfterOpen = new IntArrayList(guessNumElements);
+    lastNonWsBeforeClose = new IntArrayList(guessNumElements);
+    markupEnds = new IntArrayList(guessNumElements * 2);
+    markupBegins = new IntArrayList(guessNumElements * 2);
+
+    tagInfo.add(-1);//parent
+    tagInfo.add(-1, 0);//StartTag
+    tagInfo.add(-1, -1);//EndTag; populated by finish()
+    firstNonWsAfterOpen.add(-1);
+    lastNonWsBeforeClose.add(-1);
+    awaitingNonWs.add(thisTag);
+    parentChangeOffsets.add(-1);
+    parentChangeIds.add(thisTag);
+
+    source = new StreamedSource(input);
+    source.setCoalescing(false);
+    segmentIterator = source.iterator();
+  }
+
+  /** The document text, to be passed to the analyzer.  Closing it closes the input. */
+  public Reader getReader() {
+    return reader;
+  }
+
+  @Override
+  public boolean isCorrectable(int leftOffset, int rightOffset) {
+    if (finished)
+      return true;
+    if (rightOffset > parsedOffset)
+      return false;
+    // Like correctPair; the elements between endTag and the ancestor need to have been closed.
+    rightOffset = correctEndOffsetForCloseElement(leftOffset, rightOffset);
+    int ancestorTag = lookupTag(leftOffset);
+    while (!tagEnclosesOffset(ancestorTag, rightOffset))
+      ancestorTag = getParentTag(ancestorTag);
+    for (int iTag = lookupTag(rightOffset - 1); iTag != ancestorTag; iTag = getParentTag(iTag)) {
+      if (getCloseEndOff(iTag) == -1)
+        return false;
+    }
+    return true;
+  }
+
+  @Override
+  protected int correctEndOffsetForCloseElement(int startOffset, int endOffset) {
+    final int idx = Arrays.binarySearch(markupEnds.buffer, 0, markupEnds.size(), endOffset);
+    if (idx >= 0) {
+      final int newEndOffset = markupBegins.get(idx);
+      if (newEndOffset > startOffset)//just to be sure
+        return newEndOffset;
+    }
+    return endOffset;
+  }
+
+  @Override
+  protected boolean hasNonWhitespaceAfterOpen(int tag, int offset) {
+    final int nonWsOffset = firstNonWsAfterOpen.get(tag);
+    return nonWsOffset != -1 && nonWsOffset < offset;
+  }
+
+  @Override
+  protected boolean hasNonWhitespaceBeforeClose(int tag, int offset) {
+    return lastNonWsBeforeClose.get(tag) >= offset;
+  }
+
+  @Override
+  protected boolean tagEnclosesOffset(int tag, int off) {
+    final int closeEndOff = getCloseEndOff(tag);
+    //not closed yet, or closed by finish(); so it encloses the rest of the document
+    if (closeEndOff == -1 || closeEndOff == getCloseStartOff(tag))
+      return off >= getOpenStartOff(tag);
+    return super.tagEnclosesOffset(tag, off);
+  }
+
+  private void parseSegment(Segment segment, String text) {
+    final int begin = segment.getBegin();
+    final int end = segment.getEnd();
+    assert begin == parsedOffset : "segments aren't contiguous";
+    parsedOffset = end;
+
+    if (!(segment instanceof Tag)) {
+      for (int i = 0; i < text.length(); i++) {
+        if (!Character.isWhitespace(text.charAt(i)))
+          nonWhitespaceAt(begin + i);
+      }
+      return;
+    }
+    final Tag tag = (Tag) segment;
+    final int lastNonWsBeforeTag = lastNonWs;
+    // markup is non-whitespace
+    nonWhitespaceAt(begin);
+    lastNonWs = end - 1;
+    markupEnds.add(end);
+    markupBegins.add(begin);
+
+    if (tag.getTagType() == StartTagType.NORMAL) {
+      final StartTag startTag = (StartTag) tag;
+
+      // Elements are tracked exactly as HtmlOffsetCorrector does (see its TODOs), so that the
+      //   corrections are the same.
+
+      if (!startTag.isEmptyElementTag() && !startTag.isEndTagForbidden() && !startTag.isSyntacticalEmptyElementTag()) {//e.g. not "<br>"
+        tagInfo.ensureCapacity(tagInfo.size() + 5);
+        final int parentTag = thisTag;
+        tagInfo.add(parentTag);
+        tagInfo.add(begin, end);
+        tagInfo.add(-1, -1);//these 2 will be populated when we get to the close tag
+        thisTag = firstNonWsAfterOpen.size();
+        firstNonWsAfterOpen.add(-1);
+        lastNonWsBeforeClose.add(-1);
+        awaitingNonWs.add(thisTag);
+
+        parentChangeOffsets.add(begin);
+        parentChangeIds.add(thisTag);
+
+        //non-taggable tracking:
+        if (nonTaggableTags.contains(tag.getName())) {//always lower-case
+          if (nonTaggablesInProgress++ == 0)
+            nonTaggableOffsets.add(begin);
+        }
+      }
+    } else if (tag.getTagType() == EndTagType.NORMAL && thisTag != 0) {
+      tagInfo.set(5 * thisTag + 3, begin);
+      tagInfo.set(5 * thisTag + 4, end);
+      lastNonWsBeforeClose.set(thisTag, lastNonWsBeforeTag);
+      thisTag = getParentTag(thisTag);
+
+      parentChangeOffsets.add(end);
+      parentChangeIds.add(thisTag);
+
+      //non-taggable tracking:
+      if (nonTaggableTags.contains(tag.getName())) {
+        if (nonTaggablesInProgress-- == 1)
+          nonTaggableOffsets.add(end - 1);
+      }
+    }
+  }
+
+  private void nonWhitespaceAt(int offset) {
+    lastNonWs = offset;
+    for (int i = 0; i < awaitingNonWs.size(); i++) {
+      firstNonWsAfterOpen.set(awaitingNonWs.get(i), offset);
+    }
+    awaitingNonWs.clear();
+  }
+
+  /** Called at the end of the document. */
+  private void finish() {
+    finished = true;
+    final int docLength = parsedOffset;
+    //close elements left open (with an empty close element)
+    for (int tag = thisTag; tag != 0; tag = getParentTag(tag)) {
+      tagInfo.set(5 * tag + 3, docLength);
+      tagInfo.set(5 * tag + 4, docLength);
+      lastNonWsBeforeClose.set(tag, lastNonWs);
+    }
+    tagInfo.set(3, docLength);//document implicit tag's EndTag
+    tagInfo.set(4, docLength + 1);
+    lastNonWsBeforeClose.set(0, lastNonWs);
+    parentChangeOffsets.add(docLength + 1);
+    parentChangeIds.add(-1);
+  }
+
+  /** Reads the text of each segment from the {@link StreamedSource}, parsing it first. */
+  private class SegmentReader extends Reader {
+    private String segmentText = "";
+    private int pos = 0;
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      while (pos == segmentText.length()) {
+        if (finished)
+          return -1;
+        if (!segmentIterator.hasNext()) {
+          finish();
+          return -1;
+        }
+        final Segment segment = segmentIterator.next();
+        segmentText = segment.toString();
+        pos = 0;
+        parseSegment(segment, segmentText);
+      }
+      final int numChars = Math.min(len, segmentText.length() - pos);
+      segmentText.getChars(pos, pos + numChars, cbuf, off);
+      pos += numChars;
+      return numChars;
+    }
+
+    @Override
+    public void close() throws IOException {
+      source.close();
+    }
+  }
+}
@@ -22,6 +22,12 @@
 
 package org.opensextant.solrtexttagger;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
 public interface TagClusterReducer {
   /**
    * Reduces the linked-list to only those tags that should be emitted
@@ -35,27 +41,38 @@ public interface TagClusterReducer {
     }
   };
 
+  /**
+   * Removes tags that are contained by another (sub-tags); of tags with the same offsets, the
+   * first is kept.  Linear time given the list is in start offset order.
+   */
   static final TagClusterReducer NO_SUB = new TagClusterReducer() {
     @Override
     public void reduce(TagLL[] head) {
-      //loop forward over all tags
-      for (TagLL tag = head[0].nextTag; tag != null; tag = tag.nextTag) {
-        //loop backwards over prev tags from this tag
-        for (TagLL tPrev = tag.prevTag; tPrev != null; tPrev = tPrev.prevTag) {
-          assert tPrev.startOffset <= tag.startOffset;
-          //if a previous tag's endOffset is <= this one's, tForward can be removed
-          if (tPrev.endOffset >= tag.endOffset) {
-            tag.removeLL();
-            break;
-          } else if (tPrev.startOffset == tag.startOffset) {
-            tPrev.removeLL();
-            //continue; 'tag' is still valid
-          }
+      int maxEndOffset = -1;//of the tags of lower start offsets
+      TagLL tag = head[0];
+      while (tag != null) {
+        //--Find the first longest of the tags having this start offset
+        TagLL longest = tag;
+        TagLL next = tag.nextTag;
+        for (; next != null && next.startOffset == tag.startOffset; next = next.nextTag) {
+          if (next.endOffset > longest.endOffset)
+            longest = next;
         }
+        //--Remove all but it, and it too if a previous tag (lower start) contains it
+        for (TagLL t = tag; t != next; t = t.nextTag) {
+          if (t != longest || longest.endOffset <= maxEndOffset)
+            t.removeLL();//(doesn't modify t.nextTag)
+        }
+        maxEndOffset = Math.max(maxEndOffset, longest.endOffset);
+        tag = next;
       }
     }
   };
 
+  /**
+   * Picks the longest tag, removing those overlapping it, then the longest remaining, and so on.
+   * Of tags of the same length, the last (right-most) is preferred.  O(n log n).
+   */
   static final TagClusterReducer LONGEST_DOMINANT_RIGHT = new TagClusterReducer() {
     @Override
     public void reduce(TagLL[] head) {
@@ -64,39 +81,33 @@ public interface TagClusterReducer {
       if (head[0].nextTag == null)
         return;
 
-      while (true) {
-        //--Find longest not already marked
-        TagLL longest = null;
-        for (TagLL t = head[0]; t != null; t = t.nextTag) {
-          if (!t.mark && (longest == null || t.charLen() >= longest.charLen()))
-            longest = t;
-        }
-        if (longest == null)
-          break;
-        //--Mark longest (so we return it eventually)
-        longest.mark = true;
-        //--Remove tags overlapping this longest
-        for (TagLL t = head[0]; t != null; t = t.nextTag) {
-          if (t.mark)
-            continue;
+      //--Sort by length descending, then by position descending (stable sort of reversed list)
+      final List<TagLL> tags = new ArrayList<>();
+      for (TagLL t = head[0]; t != null; t = t.nextTag) {
+        tags.add(t);
+      }
+      Collections.reverse(tags);
+      tags.sort((a, b) -> Integer.compare(b.charLen(), a.charLen()));
 
-          if (t.overlaps(longest)) {
-            t.removeLL();
-          } else if (t.startOffset >= longest.endOffset) {
-            break;//no subsequent can possibly overlap
-          }
-        }
-      }//loop
+      //--Pick each tag not overlapping those picked before. Those picked don't overlap each other
+      //  thus by start offset they are in end offset order too; only the neighbors need checking.
+      final TreeMap<Integer, TagLL> picked = new TreeMap<>();
+      for (TagLL t : tags) {
+        final Map.Entry<Integer, TagLL> before = picked.floorEntry(t.startOffset);
+        if (before != null && before.getValue().overlaps(t))
+          continue;
+        final Map.Entry<Integer, TagLL> after = picked.higherEntry(t.startOffset);
+        if (after != null && after.getValue().overlaps(t))
+          continue;
+        t.mark = true;
+        picked.put(t.startOffset, t);
+      }
 
-      //all-remaining should be marked
-//      for (TagLL t = head; t != null; t = t.nextTag) {
-//        assert t.mark;
-////        if (!t.mark) {
-////          t.removeLL();
-////          if (head == t)
-////            head = t.nextTag;
-////        }
-//      }
+      //--Remove all not picked
+      for (TagLL t = head[0]; t != null; t = t.nextTag) {
+        if (!t.mark)
+          t.removeLL();//(doesn't modify t.nextTag)
+      }
       assert head[0].mark;
     }
   };
@@ -22,9 +22,13 @@
 
 package org.opensextant.solrtexttagger;
 
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
 
 import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * This is a Tag -- a startOffset, endOffset and value.
@@ -38,15 +42,19 @@ import java.io.IOException;
  * a reference to the head via a 1-element array, which is potentially modified
  * if any of the linked-list methods are called. Tags in the list should have
  * equal or increasing start offsets.
+ * <p>
+ * The {@link Tagger} recycles instances via a {@link Pool}; don't hold a reference to one after
+ * {@link TagClusterReducer#reduce(TagLL[])} returns.
  */
 public class TagLL{
 
   private final TagLL[] head;//a shared pointer to the head; 1 element
+  private final Pool pool;//null if not pooled
   TagLL prevTag, nextTag; // linked list
 
   private TermPrefixCursor cursor;
 
-  final int startOffset;//inclusive
+  int startOffset;//inclusive
   int endOffset;//exclusive
   Object value;//null means unset
 
@@ -54,11 +62,24 @@ public class TagLL{
   boolean mark = false;
 
   TagLL(TagLL[] head, TermPrefixCursor cursor, int startOffset, int endOffset, Object value) {
+    this(head, null, cursor, startOffset, endOffset, value);
+  }
+
+  private TagLL(TagLL[] head, Pool pool, TermPrefixCursor cursor, int startOffset, int endOffset,
+                Object value) {
     this.head = head;
+    this.pool = pool;
+    init(cursor, startOffset, endOffset, value);
+  }
+
+  private void init(TermPrefixCursor cursor, int startOffset, int endOffset, Object value) {
+    this.prevTag = null;
+    this.nextTag = null;
     this.cursor = cursor;
     this.startOffset = startOffset;
     this.endOffset = endOffset;
     this.value = value;
+    this.mark = false;
   }
 
   /**
@@ -86,7 +107,8 @@ public class TagLL{
     if (word != null && cursor.advance(word)) {
 
       if (iVal != null) {
-        addBeforeLL(new TagLL(head, null, startOffset, endOffset, iVal));
+        addBeforeLL(pool != null ? pool.newTag(null, startOffset, endOffset, iVal)
+                                 : new TagLL(head, null, startOffset, endOffset, iVal));
       }
 
       assert offset >= endOffset;
@@ -94,6 +116,8 @@ public class TagLL{
       return true;
     } else {
       this.value = iVal;
+      if (pool != null)
+        pool.releaseCursor(cursor);
       this.cursor = null;
       if (iVal == null)
         removeLL();
@@ -170,6 +194,74 @@ public class TagLL{
     return cursor != null;
   }
 
+  /**
+   * Recycles the TagLL and {@link TermPrefixCursor} instances of a {@link Tagger} to avoid
+   * creating garbage for every word.  All tags are released together once their cluster is done,
+   * since none of them outlive it.  A cursor is released as soon as its tag stops advancing.
+   * Not thread-safe.
+   */
+  static final class Pool {
+    private final TagLL[] head;
+    private final Terms terms;
+    private final Bits liveDocs;
+    private final DocIdsCache docIdsCache;
+    private final int maxDocFreq;
+    private final TaggerStats stats;
+
+    private final ArrayList<TagLL> tags = new ArrayList<>();
+    private int tagsUsed = 0;//tags before this index are in use
+    private final ArrayList<TermPrefixCursor> freeCursors = new ArrayList<>();
+
+    Pool(TagLL[] head, Terms terms, Bits liveDocs, DocIdsCache docIdsCache,
+         int maxDocFreq, TaggerStats stats) {
+      this.head = head;
+      this.terms = terms;
+      this.liveDocs = liveDocs;
+      this.docIdsCache = docIdsCache;
+      this.maxDocFreq = maxDocFreq;
+      this.stats = stats;
+    }
+
+    /** A pool of tags only; {@link #newCursor()} isn't supported. */
+    Pool(TagLL[] head) {
+      this(head, null, null, null, Integer.MAX_VALUE, null);
+    }
+
+    TagLL newTag(TermPrefixCursor cursor, int startOffset, int endOffset, Object value) {
+      if (tagsUsed == tags.size()) {
+        tags.add(new TagLL(head, this, cursor, startOffset, endOffset, value));
+        return tags.get(tagsUsed++);
+      }
+      final TagLL tag = tags.get(tagsUsed++);
+      tag.init(cursor, startOffset, endOffset, value);
+      return tag;
+    }
+
+    /** Releases all tags created by {@link #newTag(TermPrefixCursor, int, int, Object)}, and the
+     * cursors of any that are still advancing (e.g. when tagging stopped early). */
+    void releaseTags() {
+      for (int i = 0; i < tagsUsed; i++) {
+        final TagLL tag = tags.get(i);
+        if (tag.cursor != null) {
+          releaseCursor(tag.cursor);
+          tag.cursor = null;
+        }
+      }
+      tagsUsed = 0;
+    }
+
+    TermPrefixCursor newCursor() throws IOException {
+      if (freeCursors.isEmpty())
+        return new TermPrefixCursor(terms.iterator(), liveDocs, docIdsCache, maxDocFreq, stats);
+      return freeCursors.remove(freeCursors.size() - 1);
+    }
+
+    void releaseCursor(TermPrefixCursor cursor) {
+      cursor.reset();
+      freeCursors.add(cursor);
+    }
+  }
+
   @Override
   public String toString() {
     return (prevTag != null ? '*' : '-') + "|" + (nextTag != null ? '*' : '-') +
@@ -0,0 +1,136 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Support for an optional Solr user cache of the results of tagging a text, so that tagging the
+ * same text again with the same parameters only costs hashing it.  Being a searcher-lifetime
+ * cache configured in solrconfig.xml, a commit invalidates it, and it has the usual eviction and
+ * statistics.  Configure it with maxRamMB to limit it by size; the results are
+ * {@link Accountable}.  There's no point in auto-warming it.
+ * <p>
+ * Only texts of up to {@value #DEFAULT_MAX_LENGTH} chars are cached (the
+ * {@link TaggerRequestHandler#RESULT_CACHE_MAX_LENGTH} param).  That much of each input is read
+ * into memory first, to hash it; a longer input is then tagged as it's read, like without the
+ * cache.
+ */
+public class TagResultCache {
+
+  /** The default maximum length (in chars) of a text for its result to be cached. */
+  static final int DEFAULT_MAX_LENGTH = 65536;
+
+  /** The request parameters that affect the tags, which are thus part of the key.  Parameters
+   * such as rows and fl only affect how the matching documents are returned. */
+  static final String[] KEY_PARAMS = {"field", CommonParams.FQ,
+          TaggerRequestHandler.OVERLAPS, TaggerRequestHandler.TAGS_LIMIT,
+          TaggerRequestHandler.MATCH_TEXT, TaggerRequestHandler.SKIP_ALT_TOKENS,
+          TaggerRequestHandler.IGNORE_STOPWORDS, TaggerRequestHandler.XML_OFFSET_ADJUST,
+          TaggerRequestHandler.HTML_OFFSET_ADJUST, TaggerRequestHandler.HTML_OFFSET_ADJUST_STREAMING,
+          TaggerRequestHandler.NON_TAGGABLE_TAGS, TaggerRequestHandler.IDS_LIMIT,
+          TaggerRequestHandler.IDS_SORT_FIELD, TaggerRequestHandler.MAX_DOC_FREQ,
+          TaggerRequestHandler.PER_SEGMENT};//(maxDocFreq is per segment then)
+
+  private TagResultCache() {
+  }
+
+  /** The cache key: a SHA-256 hash (hex) of the {@link #KEY_PARAMS} and the text. */
+  static String key(SolrParams params, String text) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);//every JVM has it
+    }
+    for (String param : KEY_PARAMS) {
+      final String[] values = params.getParams(param);
+      if (values == null)
+        continue;
+      for (String value : values) {
+        digest.update(param.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) '=');
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+    }
+    digest.update((byte) 0);
+    digest.update(text.getBytes(StandardCharsets.UTF_8));
+    final StringBuilder hex = new StringBuilder(64);
+    for (byte b : digest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    }
+    return hex.toString();
+  }
+
+  /** The result of tagging a text.  Immutable; the tags shouldn't be modified. */
+  static final class TagResult implements Accountable {
+    // rough sizes of a tag's NamedList (with its offsets) and of an id in its list
+    private static final long TAG_RAM_BYTES = 256;
+    private static final long ID_RAM_BYTES = 64;
+
+    final List<NamedList> tags;
+    final int[] docIds;//the matching docs, sorted; null if not recorded (not for the cache)
+    final boolean truncated;//at tagsLimit
+    final int partialResultsOffset;//-1 unless it timed out
+    private final long ramBytesUsed;
+
+    TagResult(List<NamedList> tags, int[] docIds, boolean truncated, int partialResultsOffset) {
+      this.tags = Collections.unmodifiableList(tags);
+      this.docIds = docIds;
+      this.truncated = truncated;
+      this.partialResultsOffset = partialResultsOffset;
+      this.ramBytesUsed = computeRamBytesUsed();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return ramBytesUsed;
+    }
+
+    private long computeRamBytesUsed() {
+      long bytes = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER * 2;
+      if (docIds != null)
+        bytes += RamUsageEstimator.sizeOf(docIds);
+      for (NamedList tag : tags) {
+        bytes += TAG_RAM_BYTES;
+        final Object ids = tag.get("ids");
+        if (ids instanceof List)
+          bytes += ID_RAM_BYTES * ((List) ids).size();
+        final Object matchText = tag.get("matchText");
+        if (matchText instanceof String)
+          bytes += 2L * ((String) matchText).length();
+      }
+      return bytes;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.index.QueryTimeout;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
@@ -34,8 +35,6 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Tags maximum string of words in a corpus.  This is a callback-style API
@@ -46,6 +45,9 @@ import java.util.Map;
 public abstract class Tagger {
   private final Logger log = LoggerFactory.getLogger(Tagger.class);
 
+  /** How many tokens are processed between checks of the {@link QueryTimeout}. */
+  static final int TIMEOUT_CHECK_INTERVAL = 256;
+
   private final TokenStream tokenStream;
   private final TermToBytesRefAttribute byteRefAtt;
   private final PositionIncrementAttribute posIncAtt;
@@ -58,7 +60,17 @@ public abstract class Tagger {
   private final boolean skipAltTokens;
   private final boolean ignoreStopWords;
 
-  private Map<BytesRef, IntsRef> docIdsCache;
+  private DocIdsCache docIdsCache;
+  private FirstWordFilter firstWordFilter;
+  private int maxDocFreq = Integer.MAX_VALUE;
+  private TaggerStats stats;//null if none
+  private QueryTimeout queryTimeout;//null if none
+  private int tokensUntilTimeoutCheck = 0;
+  private boolean timedOut = false;
+  private boolean stopped = false;//see stop()
+
+  /** See {@link #getPendingStartOffset()}. */
+  private int pendingStartOffset = 0;
 
   /** Whether the WARNING about skipped tokens was already logged. */
   private boolean loggedSkippedAltTokenWarning = false;
@@ -82,7 +94,38 @@ public abstract class Tagger {
 
   public void enableDocIdsCache(int initSize) {
     if (initSize > 0)
-      docIdsCache = new HashMap<>(initSize);
+      docIdsCache = DocIdsCache.newHashMap(initSize);
+  }
+
+  /** Use this cache of a term (phrase) to its docIds (per liveDocs) instead of a new one.  It
+   * might be shared across requests, thus the docIds must be treated as immutable.  The keys
+   * put into it are copies that aren't modified afterwards.
+   * @see DocIdsCache */
+  public void setDocIdsCache(DocIdsCache docIdsCache) {
+    this.docIdsCache = docIdsCache;
+  }
+
+  /** Words that aren't in this filter won't start a new tag (and won't be looked up).
+   * It must have been built from the same terms (or a superset). */
+  public void setFirstWordFilter(FirstWordFilter firstWordFilter) {
+    this.firstWordFilter = firstWordFilter;
+  }
+
+  /** Names whose term has a greater docFreq (counting deleted docs) don't match; their postings
+   * aren't read.  Longer names they are a prefix of still match.  Defaults to no limit. */
+  public void setMaxDocFreq(int maxDocFreq) {
+    this.maxDocFreq = maxDocFreq;
+  }
+
+  /** Accumulates counts and timings of tagging into these stats. */
+  public void setStats(TaggerStats stats) {
+    this.stats = stats;
+  }
+
+  /** Stop tagging early if this says to (checked every {@value #TIMEOUT_CHECK_INTERVAL} tokens).
+   * Besides a time limit, it can implement cancellation.  See {@link #isTimedOut()}. */
+  public void setQueryTimeout(QueryTimeout queryTimeout) {
+    this.queryTimeout = queryTimeout;
   }
 
   public void process() throws IOException {
@@ -91,13 +134,15 @@ public abstract class Tagger {
 
     //a shared pointer to the head used by this method and each Tag instance.
     final TagLL[] head = new TagLL[1];
+    //recycles tags and cursors
+    final TagLL.Pool pool = new TagLL.Pool(head, terms, liveDocs, docIdsCache, maxDocFreq, stats);
 
     TermPrefixCursor cursor = null;//re-used
 
     //boolean switch used to log warnings in case tokens where skipped during tagging.
     boolean skippedTokens = false;
 
-    while (tokenStream.incrementToken()) {
+    while (!stopped && !checkTimeout() && incrementToken()) {
       if (log.isTraceEnabled()) {
         log.trace("Token: {}, posInc: {},  offset: [{},{}]",
                 byteRefAtt, posIncAtt.getPositionIncrement(),
@@ -127,7 +172,7 @@ public abstract class Tagger {
       //-- If PositionIncrement > 1 (stopwords)
       if (!ignoreStopWords && posIncAtt.getPositionIncrement() > 1) {
         log.trace("   - posInc > 1 ... mark cluster as done");
-        advanceTagsAndProcessClusterIfDone(head, null);
+        advanceTagsAndProcessClusterIfDone(head, pool, null);
       }
 
       final BytesRef term;
@@ -145,17 +190,17 @@ public abstract class Tagger {
       }
 
       //-- Process tag
-      advanceTagsAndProcessClusterIfDone(head, term);
+      advanceTagsAndProcessClusterIfDone(head, pool, term);
 
       //-- only create new Tags for Tokens we need to lookup
-      if (taggingAtt.isTaggable() && term != null) {
+      if (taggingAtt.isTaggable() && term != null
+              && (firstWordFilter == null || firstWordFilter.mightContain(term))) {
 
         //determine if the terms index has a term starting with the provided term
-        // TODO create a pool of these cursors to reuse them more?  could be trivial impl
         if (cursor == null)// (else the existing cursor will be re-used)
-          cursor = new TermPrefixCursor(terms.iterator(), liveDocs, docIdsCache);
+          cursor = pool.newCursor();
         if (cursor.advance(term)) {
-          TagLL newTail = new TagLL(head, cursor, offsetAtt.startOffset(), offsetAtt.endOffset(), null);
+          TagLL newTail = pool.newTag(cursor, offsetAtt.startOffset(), offsetAtt.endOffset(), null);
           cursor = null;//because the new tag now "owns" this instance
           //and add it to the end
           if (head[0] == null) {
@@ -170,10 +215,25 @@ public abstract class Tagger {
           }
         }
       }//if termId >= 0
+
+      //-- Future tags start after this token; ones not yet emitted start at the head
+      pendingStartOffset = head[0] != null ? head[0].startOffset : offsetAtt.endOffset();
     }//end while(incrementToken())
 
+    if (timedOut || stopped) {
+      //the tags not yet emitted might have been longer; drop them (releasing the cursors of those
+      //  still advancing). pendingStartOffset is at them.
+      head[0] = null;
+      pool.releaseTags();
+      if (timedOut)
+        log.debug("Timed out at offset {}", pendingStartOffset);
+      //the rest of the TokenStream isn't consumed, but as a consumer we still end() it
+      tokenStream.end();
+      return;
+    }
+
     //-- Finish all tags
-    advanceTagsAndProcessClusterIfDone(head, null);
+    advanceTagsAndProcessClusterIfDone(head, pool, null);
     assert head[0] == null;
 
     if(!loggedSkippedAltTokenWarning && skippedTokens){
@@ -188,7 +248,28 @@ public abstract class Tagger {
     //tokenStream.close(); caller closes because caller acquired it
   }
 
-  private void advanceTagsAndProcessClusterIfDone(TagLL[] head, BytesRef term) throws IOException {
+  /** Checks the queryTimeout every TIMEOUT_CHECK_INTERVAL calls, returning true if timed out. */
+  private boolean checkTimeout() {
+    if (queryTimeout == null || --tokensUntilTimeoutCheck > 0)
+      return false;
+    tokensUntilTimeoutCheck = TIMEOUT_CHECK_INTERVAL;
+    timedOut = queryTimeout.shouldExit();
+    return timedOut;
+  }
+
+  private boolean incrementToken() throws IOException {
+    if (stats == null)
+      return tokenStream.incrementToken();
+    final long startNanos = System.nanoTime();
+    final boolean hasToken = tokenStream.incrementToken();
+    stats.analysisNanos += System.nanoTime() - startNanos;
+    if (hasToken)
+      stats.tokens++;
+    return hasToken;
+  }
+
+  private void advanceTagsAndProcessClusterIfDone(TagLL[] head, TagLL.Pool pool, BytesRef term)
+          throws IOException {
     //-- Advance tags
     final int endOffset = term != null ? offsetAtt.endOffset() : -1;
     boolean anyAdvance = false;
@@ -198,15 +279,50 @@ public abstract class Tagger {
 
     //-- Process cluster if done
     if (!anyAdvance && head[0] != null) {
+      final long startNanos = stats != null ? System.nanoTime() : 0;
       tagClusterReducer.reduce(head);
-      for (TagLL t = head[0]; t != null; t = t.nextTag) {
+      if (stats != null)
+        stats.reduceNanos += System.nanoTime() - startNanos;
+      for (TagLL t = head[0]; t != null && !stopped; t = t.nextTag) {
         assert t.value != null;
         tagCallback(t.startOffset, t.endOffset, t.value);
       }
       head[0] = null;
+      pool.releaseTags();
     }
   }
 
+  /**
+   * The input offset before which no tag can start that hasn't already been passed to
+   * {@link #tagCallback(int, int, Object)}.  It increases as {@link #process()} progresses, and may
+   * be called (from the same thread) while the TokenStream reads its input.
+   */
+  public int getPendingStartOffset() {
+    return pendingStartOffset;
+  }
+
+  /**
+   * Called by {@link #tagCallback(int, int, Object)} when no more tags are wanted, such as when a
+   * limit is reached.  No more tags are passed to it, and {@link #process()} returns without
+   * reading (analyzing) the rest of the text or looking up any more terms.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  /** Whether {@link #stop()} was called. */
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * Whether {@link #process()} stopped early because of the {@link QueryTimeout}.  If so, the
+   * text before {@link #getPendingStartOffset()} was tagged completely, and nothing after it.
+   */
+  public boolean isTimedOut() {
+    return timedOut;
+  }
+
   /**
    * Invoked by {@link #process()} for each tag found.  endOffset is always &gt;= the endOffset
    * given in the previous call.
@@ -0,0 +1,385 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsReader;
+import org.apache.lucene.codecs.lucene50.Lucene50PostingsWriter;
+import org.apache.lucene.codecs.memory.FSTTermsReader;
+import org.apache.lucene.codecs.memory.FSTTermsWriter;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.IntsRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A PostingsFormat like "FST50" (the terms in an FST) for the tag field, except that the docIds
+ * of a term with at most {@link #MAX_INLINE_DOCS} docs are stored in the FST output of the term
+ * instead of in the postings file.  Most names in a gazetteer match very few docs, so the
+ * {@link Tagger} then reads their docIds without any postings I/O or decoding.  Terms with more
+ * docs, and fields indexing more than docs (freqs, positions), are delegated to the Lucene 5.0
+ * postings.  Use it in the schema with <code>postingsFormat="TaggerFST50"</code>.
+ */
+public class TaggerPostingsFormat extends PostingsFormat {
+
+  public static final String NAME = "TaggerFST50";
+
+  /** The most docIds a term can have to be stored in the terms dictionary. */
+  public static final int MAX_INLINE_DOCS = 4;
+
+  static final String CODEC_NAME = "TaggerInlinePostings";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  public TaggerPostingsFormat() {
+    super(NAME);
+  }
+
+  @Override
+  public String toString() {
+    return getName() + "(maxInlineDocs=" + MAX_INLINE_DOCS + ")";
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    PostingsWriterBase postingsWriter =
+            new InlinePostingsWriter(new Lucene50PostingsWriter(state), MAX_INLINE_DOCS);
+    boolean success = false;
+    try {
+      FieldsConsumer ret = new FSTTermsWriter(state, postingsWriter);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsWriter);
+      }
+    }
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    PostingsReaderBase postingsReader = new InlinePostingsReader(new Lucene50PostingsReader(state));
+    boolean success = false;
+    try {
+      FieldsProducer ret = new FSTTermsReader(state, postingsReader);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsReader);
+      }
+    }
+  }
+
+  /** The term metadata: either inline docIds, or the delegate's state. */
+  static final class InlineTermState extends BlockTermState {
+    int[] docIds;//sorted; null if not inline.  Immutable, so clones share it.
+    BlockTermState delegate;//reading only; null if writing an inline term
+
+    @Override
+    public InlineTermState clone() {
+      InlineTermState other = new InlineTermState();
+      other.copyFrom(this);
+      return other;
+    }
+
+    @Override
+    public void copyFrom(TermState _other) {
+      super.copyFrom(_other);
+      InlineTermState other = (InlineTermState) _other;
+      docIds = other.docIds;
+      if (other.delegate == null) {
+        delegate = null;
+      } else if (delegate == null) {
+        delegate = (BlockTermState) other.delegate.clone();
+      } else {
+        delegate.copyFrom(other.delegate);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return super.toString() + " docIds=" + Arrays.toString(docIds) + " delegate=" + delegate;
+    }
+  }
+
+  /**
+   * Writes the docIds of small terms into the term metadata (bytes of the FST output) as a count
+   * followed by delta-coded docIds.  Otherwise writes a 0 count followed by the delegate's
+   * metadata.
+   */
+  static final class InlinePostingsWriter extends PostingsWriterBase {
+    private final PostingsWriterBase delegate;
+    private final int maxInlineDocs;
+    private final int[] docBuffer;
+
+    private boolean inlineField;//true if only docs are indexed
+    private PostingsEnum postingsEnum;//reused within a field
+
+    InlinePostingsWriter(PostingsWriterBase delegate, int maxInlineDocs) {
+      this.delegate = delegate;
+      this.maxInlineDocs = maxInlineDocs;
+      this.docBuffer = new int[maxInlineDocs];
+    }
+
+    @Override
+    public void init(IndexOutput termsOut, SegmentWriteState state) throws IOException {
+      CodecUtil.writeIndexHeader(termsOut, CODEC_NAME, VERSION_CURRENT,
+              state.segmentInfo.getId(), state.segmentSuffix);
+      termsOut.writeVInt(maxInlineDocs);
+      delegate.init(termsOut, state);
+    }
+
+    @Override
+    public int setField(FieldInfo fieldInfo) {
+      inlineField = fieldInfo.getIndexOptions() == IndexOptions.DOCS;
+      postingsEnum = null;
+      return delegate.setField(fieldInfo);
+    }
+
+    @Override
+    public BlockTermState writeTerm(BytesRef term, TermsEnum termsEnum, FixedBitSet docsSeen)
+            throws IOException {
+      if (inlineField) {
+        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+        int numDocs = 0;
+        int docId;
+        while ((docId = postingsEnum.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
+          if (numDocs == maxInlineDocs) {
+            numDocs = -1;//too many
+            break;
+          }
+          docBuffer[numDocs++] = docId;
+        }
+        if (numDocs == 0) {
+          return null;
+        }
+        if (numDocs > 0) {
+          for (int i = 0; i < numDocs; i++) {
+            docsSeen.set(docBuffer[i]);
+          }
+          InlineTermState state = new InlineTermState();
+          state.docIds = Arrays.copyOf(docBuffer, numDocs);
+          state.docFreq = numDocs;
+          state.totalTermFreq = -1;//docs only
+          return state;
+        }
+      }
+      // the delegate pulls the postings again
+      return delegate.writeTerm(term, termsEnum, docsSeen);
+    }
+
+    @Override
+    public void encodeTerm(long[] longs, DataOutput out, FieldInfo fieldInfo,
+                           BlockTermState state, boolean absolute) throws IOException {
+      if (state instanceof InlineTermState) {
+        final int[] docIds = ((InlineTermState) state).docIds;
+        Arrays.fill(longs, 0);
+        out.writeVInt(docIds.length);
+        int lastDocId = 0;
+        for (int docId : docIds) {
+          out.writeVInt(docId - lastDocId);
+          lastDocId = docId;
+        }
+      } else {
+        out.writeVInt(0);
+        delegate.encodeTerm(longs, out, fieldInfo, state, absolute);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+  }
+
+  /** Reads what {@link InlinePostingsWriter} writes. */
+  static final class InlinePostingsReader extends PostingsReaderBase {
+    private final PostingsReaderBase delegate;
+
+    InlinePostingsReader(PostingsReaderBase delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void init(IndexInput termsIn, SegmentReadState state) throws IOException {
+      CodecUtil.checkIndexHeader(termsIn, CODEC_NAME, VERSION_START, VERSION_CURRENT,
+              state.segmentInfo.getId(), state.segmentSuffix);
+      termsIn.readVInt();//maxInlineDocs; informational
+      delegate.init(termsIn, state);
+    }
+
+    @Override
+    public BlockTermState newTermState() throws IOException {
+      InlineTermState state = new InlineTermState();
+      state.delegate = delegate.newTermState();
+      return state;
+    }
+
+    @Override
+    public void decodeTerm(long[] longs, DataInput in, FieldInfo fieldInfo,
+                           BlockTermState _state, boolean absolute) throws IOException {
+      final InlineTermState state = (InlineTermState) _state;
+      final int numDocs = in.readVInt();
+      if (numDocs == 0) {
+        state.docIds = null;
+        state.delegate.docFreq = state.docFreq;
+        state.delegate.totalTermFreq = state.totalTermFreq;
+        delegate.decodeTerm(longs, in, fieldInfo, state.delegate, absolute);
+        return;
+      }
+      final int[] docIds = new int[numDocs];
+      int docId = 0;
+      for (int i = 0; i < numDocs; i++) {
+        docId += in.readVInt();
+        docIds[i] = docId;
+      }
+      state.docIds = docIds;
+    }
+
+    @Override
+    public PostingsEnum postings(FieldInfo fieldInfo, BlockTermState _state, PostingsEnum reuse,
+                                 int flags) throws IOException {
+      final InlineTermState state = (InlineTermState) _state;
+      if (state.docIds == null) {
+        return delegate.postings(fieldInfo, state.delegate, reuse, flags);
+      }
+      InlinePostingsEnum postingsEnum = reuse instanceof InlinePostingsEnum
+              ? (InlinePostingsEnum) reuse : new InlinePostingsEnum();
+      postingsEnum.reset(state.docIds);
+      return postingsEnum;
+    }
+
+    @Override
+    public void checkIntegrity() throws IOException {
+      delegate.checkIntegrity();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return delegate.ramBytesUsed();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegate.close();
+    }
+  }
+
+  /** Iterates inline docIds.  Only docs are indexed, so the freq is 1 and there are no positions. */
+  static final class InlinePostingsEnum extends PostingsEnum {
+    private int[] docIds;
+    private int upto;//index of the current doc
+    private int docId;
+
+    void reset(int[] docIds) {
+      this.docIds = docIds;
+      this.upto = -1;
+      this.docId = -1;
+    }
+
+    /** The docIds in liveDocs (if not null), without iterating. */
+    IntsRef readDocIds(Bits liveDocs) {
+      final IntsRef result = new IntsRef(docIds.length);
+      for (int id : docIds) {
+        if (liveDocs == null || liveDocs.get(id))
+          result.ints[result.length++] = id;
+      }
+      upto = docIds.length;
+      docId = NO_MORE_DOCS;
+      return result;
+    }
+
+    @Override
+    public int docID() {
+      return docId;
+    }
+
+    @Override
+    public int nextDoc() {
+      if (++upto >= docIds.length) {
+        upto = docIds.length;
+        return docId = NO_MORE_DOCS;
+      }
+      return docId = docIds[upto];
+    }
+
+    @Override
+    public int advance(int target) {
+      while (nextDoc() < target) {
+        //keep going; NO_MORE_DOCS is greater than any target
+      }
+      return docId;
+    }
+
+    @Override
+    public long cost() {
+      return docIds.length;
+    }
+
+    @Override
+    public int freq() {
+      return 1;
+    }
+
+    @Override
+    public int nextPosition() {
+      return -1;
+    }
+
+    @Override
+    public int startOffset() {
+      return -1;
+    }
+
+    @Override
+    public int endOffset() {
+      return -1;
+    }
+
+    @Override
+    public BytesRef getPayload() {
+      return null;
+    }
+  }
+}
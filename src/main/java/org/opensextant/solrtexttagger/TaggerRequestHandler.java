@@ -22,65 +22,103 @@
 
 package org.opensextant.solrtexttagger;
 
+import com.carrotsearch.hppc.IntArrayList;
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
 import com.google.common.io.CharStreams;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.StopFilterFactory;
 import org.apache.lucene.analysis.util.TokenFilterFactory;
+import org.apache.lucene.index.DocValues;
 import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.QueryTimeout;
+import org.apache.lucene.index.QueryTimeoutImpl;
 import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.SortedDocValues;
 import org.apache.lucene.index.Terms;
 import org.apache.lucene.queries.function.FunctionValues;
 import org.apache.lucene.queries.function.ValueSource;
 import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.Query;
-import org.apache.lucene.util.BitSetIterator;
 import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.DocIdSetBuilder;
 import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.IntsRef;
 import org.apache.solr.analysis.TokenizerChain;
 import org.apache.solr.common.SolrException;
+import org.apache.solr.common.IteratorWriter;
 import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.EventParams;
 import org.apache.solr.common.params.MapSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.JavaBinCodec;
 import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.CloseHook;
+import org.apache.solr.core.SolrCore;
 import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.metrics.SolrMetricManager;
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.response.TextResponseWriter;
+import org.apache.solr.response.WriteableValue;
 import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.StrField;
 import org.apache.solr.search.BitDocSet;
+import org.apache.solr.search.CacheRegenerator;
+import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
 import org.apache.solr.search.DocSet;
 import org.apache.solr.search.DocSlice;
 import org.apache.solr.search.QParser;
+import org.apache.solr.search.SolrCache;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.SolrReturnFields;
 import org.apache.solr.search.SyntaxError;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+import org.apache.solr.util.plugin.SolrCoreAware;
+import org.noggit.JSONParser;
+import org.noggit.ObjectBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.xml.stream.XMLStreamException;
+import java.io.CharArrayReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
 
 /**
  * Scans posted text, looking for matching strings in the Solr index.
- * The public static final String members are request parameters.
+ * The public static final String members are request parameters, unless noted otherwise.
  */
-public class TaggerRequestHandler extends RequestHandlerBase {
+public class TaggerRequestHandler extends RequestHandlerBase implements SolrCoreAware {
 
   /** Request parameter. */
   public static final String OVERLAPS = "overlaps";
@@ -97,13 +135,165 @@ public class TaggerRequestHandler extends RequestHandlerBase {
   /** Request parameter. */
   public static final String HTML_OFFSET_ADJUST = "htmlOffsetAdjust";
   /** Request parameter. */
+  public static final String HTML_OFFSET_ADJUST_STREAMING = "htmlOffsetAdjustStreaming";
+  /** Request parameter. */
   public static final String NON_TAGGABLE_TAGS = "nonTaggableTags";
+  /** Request parameter. */
+  public static final String PER_SEGMENT = "perSegment";
+  /** Request parameter. */
+  public static final String STREAM_TAGS = "streamTags";
+  /** Request parameter. */
+  public static final String BATCH = "batch";
+  /** Request parameter. */
+  public static final String IDS_LIMIT = "idsLimit";
+  /** Request parameter. */
+  public static final String IDS_SORT_FIELD = "idsSortField";
+  /** Request parameter. */
+  public static final String MAX_DOC_FREQ = "maxDocFreq";
+  /** Request parameter. */
+  public static final String RESULT_CACHE_MAX_LENGTH = "resultCacheMaxLength";
+
+  /** Response key: true if tagging stopped at {@link #TAGS_LIMIT}, before the end of the text. */
+  public static final String TRUNCATED = "truncated";
+
+  /** Response key: the offset the text was tagged up to when {@code timeAllowed} ran out. */
+  public static final String PARTIAL_RESULTS_OFFSET = "partialResultsOffset";
+
+  /** Handler configuration (a NamedList with "threads" and "queueSize") for a thread pool to tag
+   * segments in parallel when {@link #PER_SEGMENT} is true. Not a request parameter. */
+  public static final String SEGMENT_EXECUTOR = "segmentExecutor";
+
+  /** Name of an optional Solr user cache (configured in solrconfig.xml) holding a
+   * {@link FirstWordFilter} per tag field. Not a request parameter. */
+  public static final String FIRST_WORD_CACHE = "taggerFirstWordCache";
+
+  /** Name of an optional Solr user cache (configured in solrconfig.xml) of phrases to docIds.
+   * See {@link DocIdsCache}. Not a request parameter. */
+  public static final String DOC_IDS_CACHE = "taggerDocIdsCache";
+
+  /** Name of an optional Solr user cache (configured in solrconfig.xml) of the 'fq' filter queries
+   * to the bits of the documents they match. See {@link FilterBitsRegenerator}.
+   * Not a request parameter. */
+  public static final String FILTER_CACHE = "taggerFilterCache";
+
+  /** Name of an optional Solr user cache (configured in solrconfig.xml) of the results of tagging
+   * a text. See {@link TagResultCache}. Not a request parameter. */
+  public static final String RESULT_CACHE = "taggerResultCache";
 
   private final Logger log = LoggerFactory.getLogger(getClass());
 
+  private ExecutorService segmentExecutor;//null if not configured
+
+  private volatile TaggerWarmingListener.RecentTexts recentTexts;//null unless a listener replays them
+
+  // Metrics of the phases of tagging, updated per input text; null until initializeMetrics.
+  //   The times are in microseconds.
+  private Histogram analysisTime;
+  private Histogram seekTime;
+  private Histogram postingsTime;
+  private Histogram reduceTime;
+  private Histogram offsetCorrectionTime;
+  private Histogram idResolutionTime;
+  private Counter tokensCounter;
+  private Counter seeksCounter;
+  private Counter seekHitsCounter;
+  private Counter tagsCounter;
+  private Counter docIdsCacheLookupsCounter;
+  private Counter docIdsCacheHitsCounter;
+  private Counter maxDocFreqSkipsCounter;
+
+  @Override
+  public void init(NamedList args) {
+    super.init(args);
+    NamedList executorArgs = (NamedList) args.get(SEGMENT_EXECUTOR);
+    if (executorArgs != null) {
+      SolrParams executorParams = SolrParams.toSolrParams(executorArgs);
+      int threads = executorParams.getInt("threads", Runtime.getRuntime().availableProcessors());
+      int queueSize = executorParams.getInt("queueSize", threads * 4);
+      // when the queue is full, the requesting thread tags the segment itself
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+              new ArrayBlockingQueue<>(queueSize), new DefaultSolrThreadFactory("taggerSegment"),
+              new ThreadPoolExecutor.CallerRunsPolicy());
+      executor.allowCoreThreadTimeOut(true);
+      segmentExecutor = executor;
+    }
+  }
+
+  @Override
+  public void initializeMetrics(SolrMetricManager manager, String registryName, String scope) {
+    super.initializeMetrics(manager, registryName, scope);
+    final String category = getCategory().toString();
+    analysisTime = manager.histogram(this, registryName, "analysisTime", category, scope);
+    seekTime = manager.histogram(this, registryName, "seekTime", category, scope);
+    postingsTime = manager.histogram(this, registryName, "postingsTime", category, scope);
+    reduceTime = manager.histogram(this, registryName, "reduceTime", category, scope);
+    offsetCorrectionTime = manager.histogram(this, registryName,
+            "offsetCorrectionTime", category, scope);
+    idResolutionTime = manager.histogram(this, registryName, "idResolutionTime", category, scope);
+    tokensCounter = manager.counter(this, registryName, "tokens", category, scope);
+    seeksCounter = manager.counter(this, registryName, "seeks", category, scope);
+    seekHitsCounter = manager.counter(this, registryName, "seekHits", category, scope);
+    tagsCounter = manager.counter(this, registryName, "tags", category, scope);
+    docIdsCacheLookupsCounter = manager.counter(this, registryName,
+            "docIdsCacheLookups", category, scope);
+    docIdsCacheHitsCounter = manager.counter(this, registryName, "docIdsCacheHits", category, scope);
+    maxDocFreqSkipsCounter = manager.counter(this, registryName, "maxDocFreqSkips", category, scope);
+    manager.registerGauge(this, registryName, (Gauge<Double>) () -> {
+      final long lookups = docIdsCacheLookupsCounter.getCount();
+      return lookups == 0 ? 0.0 : (double) docIdsCacheHitsCounter.getCount() / lookups;
+    }, true, "docIdsCacheHitRatio", category, scope);
+  }
+
+  /** Adds the stats of tagging an input text to the metrics. */
+  private void updateMetrics(TaggerStats stats) {
+    analysisTime.update(TimeUnit.NANOSECONDS.toMicros(stats.analysisNanos));
+    seekTime.update(TimeUnit.NANOSECONDS.toMicros(stats.seekNanos));
+    postingsTime.update(TimeUnit.NANOSECONDS.toMicros(stats.postingsNanos));
+    reduceTime.update(TimeUnit.NANOSECONDS.toMicros(stats.reduceNanos));
+    offsetCorrectionTime.update(TimeUnit.NANOSECONDS.toMicros(stats.offsetCorrectionNanos));
+    idResolutionTime.update(TimeUnit.NANOSECONDS.toMicros(stats.idResolutionNanos));
+    tokensCounter.inc(stats.tokens);
+    seeksCounter.inc(stats.seeks);
+    seekHitsCounter.inc(stats.seekHits);
+    tagsCounter.inc(stats.tags);
+    docIdsCacheLookupsCounter.inc(stats.docIdsCacheLookups);
+    docIdsCacheHitsCounter.inc(stats.docIdsCacheHits);
+    maxDocFreqSkipsCounter.inc(stats.maxDocFreqSkips);
+  }
+
+  /** Starts recording the texts this handler tags, if not already, for a
+   * {@link TaggerWarmingListener} to replay.  Returns the recorded texts. */
+  synchronized TaggerWarmingListener.RecentTexts recordRecentTexts(int capacity, int maxLength) {
+    if (recentTexts == null)
+      recentTexts = new TaggerWarmingListener.RecentTexts(capacity, maxLength);
+    else if (recentTexts.capacity() < capacity || recentTexts.maxLength() < maxLength)
+      recentTexts = new TaggerWarmingListener.RecentTexts(Math.max(capacity, recentTexts.capacity()),
+              Math.max(maxLength, recentTexts.maxLength()));
+    return recentTexts;
+  }
+
+  @Override
+  public void inform(SolrCore core) {
+    if (segmentExecutor != null) {
+      core.addCloseHook(new CloseHook() {
+        @Override
+        public void preClose(SolrCore core) {
+        }
+
+        @Override
+        public void postClose(SolrCore core) {
+          ExecutorUtil.shutdownAndAwaitTermination(segmentExecutor);
+        }
+      });
+    }
+  }
+
   @Override
   public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
     setTopInitArgsAsInvariants(req);
+    // starts now; it's for the whole request
+    final long timeAllowed = req.getParams().getLong(CommonParams.TIME_ALLOWED, -1L);
+    final QueryTimeout queryTimeout = timeAllowed > 0 ? new QueryTimeoutImpl(timeAllowed) : null;
 
     //--Read params
     final String indexedField = req.getParams().get("field");
@@ -126,135 +316,362 @@ public class TaggerRequestHandler extends RequestHandlerBase {
     final boolean htmlOffsetAdjust = req.getParams().getBool(HTML_OFFSET_ADJUST, false);
     final boolean xmlOffsetAdjust = req.getParams().getBool(XML_OFFSET_ADJUST, false);
     final String nonTaggableTags = req.getParams().get(NON_TAGGABLE_TAGS);
+    final boolean perSegment = req.getParams().getBool(PER_SEGMENT, false);
+    final boolean streamTags = req.getParams().getBool(STREAM_TAGS, false);
+    final boolean htmlOffsetAdjustStreaming = htmlOffsetAdjust
+            && req.getParams().getBool(HTML_OFFSET_ADJUST_STREAMING, false);
+    if (htmlOffsetAdjustStreaming && (addMatchText || perSegment))//these buffer the input anyway
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, HTML_OFFSET_ADJUST_STREAMING
+              + " isn't supported with " + MATCH_TEXT + " or " + PER_SEGMENT);
+
+    final boolean batch = req.getParams().getBool(BATCH, false);
+    final int idsLimit = req.getParams().getInt(IDS_LIMIT, Integer.MAX_VALUE);
+    if (idsLimit <= 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, IDS_LIMIT + " must be > 0");
+    final SchemaField idsSortField = parseIdsSortField(req);
+    final int maxDocFreq = req.getParams().getInt(MAX_DOC_FREQ, Integer.MAX_VALUE);
+    if (maxDocFreq <= 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, MAX_DOC_FREQ + " must be > 0");
+    if (batch && streamTags)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              STREAM_TAGS + " isn't supported with " + BATCH);
 
     //--Get posted data
-    Reader inputReader = null;
-    Iterable<ContentStream> streams = req.getContentStreams();
-    if (streams != null) {
-      Iterator<ContentStream> iter = streams.iterator();
-      if (iter.hasNext()) {
-        inputReader = iter.next().getReader();
-      }
-      if (iter.hasNext()) {
-        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
-            getClass().getSimpleName()+" does not support multiple ContentStreams");
+    final List<ContentStream> streams = new ArrayList<>();
+    if (req.getContentStreams() != null) {
+      for (ContentStream stream : req.getContentStreams()) {
+        streams.add(stream);
       }
     }
-    if (inputReader == null) {
+    if (streams.isEmpty()) {
       throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
           getClass().getSimpleName()+" requires text to be POSTed to it");
     }
-    final String inputString;//only populated if needed
-    if (addMatchText || xmlOffsetAdjust || htmlOffsetAdjust) {
-      //Read the input fully into a String buffer that we'll need later,
-      // then replace the input with a reader wrapping the buffer.
-      inputString = CharStreams.toString(inputReader);
-      inputReader.close();
-      inputReader = new StringReader(inputString);
-    } else {
-      inputString = null;//not used
+    if (streams.size() > 1 && !batch) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+          getClass().getSimpleName()+" does not support multiple ContentStreams unless " + BATCH);
     }
+    // matchText alone can be cut from a window instead, except perSegment buffers everything anyway
+    final boolean needInputString = xmlOffsetAdjust || (htmlOffsetAdjust && !htmlOffsetAdjustStreaming)
+            || (addMatchText && perSegment);
+    final boolean useMatchTextWindow = addMatchText && !needInputString;
 
-    final OffsetCorrector offsetCorrector =
-            initOffsetCorrector(htmlOffsetAdjust, xmlOffsetAdjust, inputString, nonTaggableTags);
+    //--Setup what's shared by all inputs
     final SolrIndexSearcher searcher = req.getSearcher();
-    final FixedBitSet matchDocIdsBS = new FixedBitSet(searcher.maxDoc());
-    final List tags = new ArrayList(2000);
+    // starts as a small buffer of docIds; it only becomes a bitset if many docs match
+    final DocIdSetBuilder matchDocIds = new DocIdSetBuilder(searcher.maxDoc());
+    final List<Query> filterQueries = parseFilterQueries(req);
+    final Bits fqBits = filterQueries == null ? null : computeDocCorpus(searcher, filterQueries);
+    final IntFunction<DocIdsCache> docIdsCaches =
+            initDocIdsCaches(searcher, indexedField, filterQueries);
+    // (the tags are streamed as they're found, thus not cached)
+    final SolrCache<String, TagResultCache.TagResult> resultCache =
+            streamTags ? null : searcher.getCache(RESULT_CACHE);
+    // longer texts aren't cached; only this much of an input is read ahead to find out
+    final int resultCacheMaxLength = req.getParams().getInt(RESULT_CACHE_MAX_LENGTH,
+            TagResultCache.DEFAULT_MAX_LENGTH);
+    if (resultCacheMaxLength < 0)
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              RESULT_CACHE_MAX_LENGTH + " must be >= 0");
+    final TagCollector tagCollector =
+            new TagCollector(searcher, idSchemaField, tagsLimit, idsLimit, idsSortField, matchDocIds,
+                    !streamTags, resultCache != null);
+    // the warming listener's own requests aren't metered nor recorded; they aren't user traffic
+    final boolean warming = req.getParams().get(EventParams.EVENT) != null;
+    final boolean collectStats = analysisTime != null && !warming;//metrics are initialized
+    final TaggerWarmingListener.RecentTexts recentTexts = warming ? null : this.recentTexts;
+
+    //Tags the input, passing each tag to tagConsumer.  Closes the input.
+    final Function<TaggingInput, TaggingRun> taggingRunFor = input -> tagConsumer -> {
+      final TaggerStats stats = collectStats ? new TaggerStats() : null;
+      tagCollector.startInput(tagConsumer, input.offsetCorrector, input.lazyOffsetCorrector,
+              addMatchText ? input.inputString : null, input.matchTextWindow, stats);
+      try {
+        tag(req, indexedField, input.reader, tagCollector, perSegment, docIdsCaches, fqBits,
+                tagClusterReducer, skipAltTokens, ignoreStopWords, maxDocFreq, stats, queryTimeout);
+        tagCollector.finishInput();
+        if (stats != null)
+          updateMetrics(stats);
+      } finally {
+        input.reader.close();
+      }
+    };
+
+    //Tags the input fully, or gets the result from the resultCache.  Records it for warming.
+    //  Closes the input.
+    final InputTagger inputTagger = inputReader -> {
+      String cacheKey = null;
+      if (resultCache != null || recentTexts != null) {
+        // read no more than the longest text either would take
+        final int maxLength = Math.max(resultCache != null ? resultCacheMaxLength : -1,
+                recentTexts != null ? recentTexts.maxLength() : -1);
+        final BufferedInput bufferedInput;
+        try {
+          bufferedInput = BufferedInput.read(inputReader, maxLength);
+        } catch (IOException | RuntimeException e) {
+          inputReader.close();
+          throw e;
+        }
+        final String text = bufferedInput.text();//null if longer than maxLength
+        if (recentTexts != null && text != null && text.length() <= recentTexts.maxLength())
+          recentTexts.add(req.getParams(), text);
+        if (resultCache != null && text != null && text.length() <= resultCacheMaxLength) {
+          cacheKey = TagResultCache.key(req.getParams(), text);
+          final TagResultCache.TagResult cached = resultCache.get(cacheKey);
+          if (cached != null) {
+            final DocIdSetBuilder.BulkAdder matchDocIdsAdder = matchDocIds.grow(cached.docIds.length);
+            for (int docId : cached.docIds) {
+              matchDocIdsAdder.add(docId);
+            }
+            return cached;
+          }
+        }
+        inputReader = bufferedInput.reader();
+      }
+      final TaggingInput input = new TaggingInput(inputReader, needInputString,
+              useMatchTextWindow, htmlOffsetAdjust, htmlOffsetAdjustStreaming, xmlOffsetAdjust,
+              nonTaggableTags);
+      final List<NamedList> tags = new ArrayList<>();
+      taggingRunFor.apply(input).run(tags::add);
+      final TagResultCache.TagResult result = new TagResultCache.TagResult(tags,
+              tagCollector.getInputDocIds(), tagCollector.isTruncated(),
+              tagCollector.getPartialResultsOffset());
+      if (cacheKey != null && result.partialResultsOffset < 0)
+        resultCache.put(cacheKey, result);
+      return result;
+    };
+
+    if (batch) {
+      // A result for each input text, in order
+      final List<NamedList> results = new ArrayList<>();
+      for (ContentStream stream : streams) {
+        for (Reader inputReader : readBatchStream(stream)) {
+          final TagResultCache.TagResult tagResult = inputTagger.tag(inputReader);
+          NamedList result = new SimpleOrderedMap();
+          result.add("tagsCount", tagResult.tags.size());
+          result.add("tags", tagResult.tags);
+          if (tagResult.truncated)
+            result.add(TRUNCATED, true);
+          if (tagResult.partialResultsOffset >= 0) {
+            result.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, true);
+            result.add(PARTIAL_RESULTS_OFFSET, tagResult.partialResultsOffset);
+            setPartialResults(rsp);
+          }
+          results.add(result);
+        }
+      }
+      rsp.add(BATCH, results);
+
+    } else if (streamTags) {
+      final TaggingInput input = new TaggingInput(streams.get(0).getReader(), needInputString,
+              useMatchTextWindow, htmlOffsetAdjust, htmlOffsetAdjustStreaming, xmlOffsetAdjust,
+              nonTaggableTags);
+      // Tag while the response is written; the status and the doc list (written after) wait for it
+      //   to finish.
+      final TagStream tagStream = new TagStream(taggingRunFor.apply(input), tagCollector);
+      rsp.add("tags", tagStream);
+      tagStream.addStatus(rsp);
+      rsp.setReturnFields(new SolrReturnFields( req ));
+      rsp.add("response", new LazyDocList(() -> {
+        tagStream.finish();
+        return getDocList(rows, matchDocIds);
+      }));
+      return;
+
+    } else {
+      final TagResultCache.TagResult tagResult = inputTagger.tag(streams.get(0).getReader());
+      rsp.add("tagsCount", tagResult.tags.size());
+      rsp.add("tags", tagResult.tags);
+      if (tagResult.truncated)
+        rsp.add(TRUNCATED, true);
+      if (tagResult.partialResultsOffset >= 0) {
+        setPartialResults(rsp);
+        rsp.add(PARTIAL_RESULTS_OFFSET, tagResult.partialResultsOffset);
+      }
+    }
+
+    rsp.setReturnFields(new SolrReturnFields( req ));
+
+    //Solr's standard name for matching docs in response
+    rsp.add("response", getDocList(rows, matchDocIds));
+  }
+
+  /** The field to keep the top {@link #IDS_LIMIT} ids of a tag by, or null. */
+  private static SchemaField parseIdsSortField(SolrQueryRequest req) {
+    final String fieldName = req.getParams().get(IDS_SORT_FIELD);
+    if (fieldName == null)
+      return null;
+    final SchemaField field = req.getSchema().getFieldOrNull(fieldName);
+    if (field == null || field.getType().getNumberType() == null || !field.hasDocValues()
+            || field.multiValued())
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, IDS_SORT_FIELD
+              + " must be a single-valued numeric field with docValues: " + fieldName);
+    return field;
+  }
+
+  private static void setPartialResults(SolrQueryResponse rsp) {
+    final NamedList<Object> header = rsp.getResponseHeader();
+    if (header != null && header.get(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY) == null)
+      header.add(SolrQueryResponse.RESPONSE_HEADER_PARTIAL_RESULTS_KEY, Boolean.TRUE);
+  }
+
+  /**
+   * The input texts of a stream when in batch mode.  If the content type is JSON then it's either
+   * an array of strings or a sequence of strings (e.g. one per line: JSONL); otherwise the stream
+   * is one text.
+   */
+  private List<Reader> readBatchStream(ContentStream stream) throws IOException {
+    final String contentType = stream.getContentType();
+    if (contentType == null || !contentType.contains("json"))
+      return Collections.singletonList(stream.getReader());
+    final List<Reader> inputs = new ArrayList<>();
+    try (Reader reader = stream.getReader()) {
+      final JSONParser parser = new JSONParser(reader);
+      for (int ev = parser.nextEvent(); ev != JSONParser.EOF; ev = parser.nextEvent()) {
+        final Object val = ObjectBuilder.getVal(parser);
+        final List<?> texts = val instanceof List ? (List<?>) val : Collections.singletonList(val);
+        for (Object text : texts) {
+          if (!(text instanceof String))
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                    BATCH + " JSON input must be strings or arrays of strings, not: " + text);
+          inputs.add(new StringReader((String) text));
+        }
+      }
+    } catch (JSONParser.ParseException e) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+              "Expecting JSON but wasn't: " + e, e);
+    }
+    return inputs;
+  }
+
+  /** Docs-id caches by segment ordinal, or -1 for top-level, shared by all inputs. */
+  private static IntFunction<DocIdsCache> initDocIdsCaches(
+          SolrIndexSearcher searcher, String indexedField, List<Query> filterQueries) {
+    final SolrCache<DocIdsCache.Key, IntsRef> docIdsCache = searcher.getCache(DOC_IDS_CACHE);
+    final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+    if (docIdsCache != null)
+      return leafOrd -> DocIdsCache.view(docIdsCache, indexedField, filterQueries,
+              leafOrd < 0 ? null : leaves.get(leafOrd));
+    // only for this request.  (created now because segments may be tagged concurrently)
+    final DocIdsCache[] caches = new DocIdsCache[leaves.size() + 1];
+    for (int i = 0; i < caches.length; i++) {
+      caches[i] = DocIdsCache.newHashMap(16);
+    }
+    return leafOrd -> caches[leafOrd + 1];
+  }
 
-    try {
-      Analyzer analyzer = req.getSchema().getField(indexedField).getType().getQueryAnalyzer();
-      try (TokenStream tokenStream = analyzer.tokenStream("", inputReader)) {
+  /** An input text to tag, read fully into a String if needed. */
+  private class TaggingInput {
+    final Reader reader;
+    final String inputString;//only populated if needed
+    final TeeWindowReader matchTextWindow;//only populated if needed (then it's the reader too)
+    final OffsetCorrector offsetCorrector;//null if none or lazy
+    final Supplier<OffsetCorrector> lazyOffsetCorrector;//null if none or not lazy
+
+    TaggingInput(Reader inputReader, boolean needInputString, boolean useMatchTextWindow,
+                 boolean htmlOffsetAdjust, boolean htmlOffsetAdjustStreaming,
+                 boolean xmlOffsetAdjust, String nonTaggableTags) throws IOException {
+      if (htmlOffsetAdjustStreaming) {
+        //The corrector parses the HTML as the analyzer reads it
+        inputString = null;
+        final StreamingHtmlOffsetCorrector streamingCorrector =
+                new StreamingHtmlOffsetCorrector(inputReader, parseNonTaggableTags(nonTaggableTags));
+        reader = streamingCorrector.getReader();
+        matchTextWindow = null;
+        offsetCorrector = streamingCorrector;
+        lazyOffsetCorrector = null;
+        return;
+      }
+      if (needInputString) {
+        //Read the input fully into a String buffer that we'll need later,
+        // then replace the input with a reader wrapping the buffer.
+        inputString = CharStreams.toString(inputReader);
+        inputReader.close();
+        reader = new StringReader(inputString);
+        matchTextWindow = null;
+      } else if (useMatchTextWindow) {
+        inputString = null;
+        reader = matchTextWindow = new TeeWindowReader(inputReader);
+      } else {
+        inputString = null;//not used
+        reader = inputReader;
+        matchTextWindow = null;
+      }
+      offsetCorrector = null;
+      //the structure is only parsed if there are tags to correct
+      lazyOffsetCorrector = htmlOffsetAdjust || xmlOffsetAdjust ? () ->
+              initOffsetCorrector(htmlOffsetAdjust, xmlOffsetAdjust, inputString, nonTaggableTags)
+              : null;
+    }
+  }
+
+  private void tag(SolrQueryRequest req, String indexedField, Reader inputReader,
+                   TagCollector tagCollector, boolean perSegment,
+                   IntFunction<DocIdsCache> docIdsCaches, Bits fqBits,
+                   TagClusterReducer tagClusterReducer, boolean skipAltTokens,
+                   boolean ignoreStopWords, int maxDocFreq, TaggerStats stats,
+                   QueryTimeout queryTimeout)
+          throws IOException {
+    final SolrIndexSearcher searcher = req.getSearcher();
+    Analyzer analyzer = req.getSchema().getField(indexedField).getType().getQueryAnalyzer();
+    try (TokenStream tokenStream = analyzer.tokenStream("", inputReader)) {
+      if (perSegment) {
+        if (!hasIndexedData(searcher, indexedField))
+          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
+                  "field " + indexedField + " has no indexed data");
+        MultiSegmentTagger tagger = new MultiSegmentTagger(searcher.getIndexReader().leaves(),
+                indexedField, fqBits, tokenStream, tagClusterReducer,
+                skipAltTokens, ignoreStopWords) {
+          @Override
+          protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
+            if (!tagCollector.tagCallback(startOffset, endOffset, lookupDocIds(docIdsKey)))
+              stop();
+          }
+        };
+        tagger.setDocIdsCache(docIdsCaches);
+        tagger.setFirstWordFilter(getFirstWordFilter(searcher, indexedField));
+        tagger.setExecutor(segmentExecutor);
+        tagger.setMaxDocFreq(maxDocFreq);
+        tagger.setStats(stats);
+        tagger.setQueryTimeout(queryTimeout);
+        tagger.process();
+        if (tagger.isTimedOut())
+          tagCollector.timedOut(tagger.getPendingStartOffset());
+      } else {
         Terms terms = searcher.getSlowAtomicReader().terms(indexedField);
         if (terms == null)
           throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
                   "field " + indexedField + " has no indexed data");
-        Tagger tagger = new Tagger(terms, computeDocCorpus(req), tokenStream, tagClusterReducer,
+        Bits docBits = fqBits;
+        if (docBits == null)
+          docBits = searcher.getSlowAtomicReader().getLiveDocs();
+        Tagger tagger = new Tagger(terms, docBits, tokenStream, tagClusterReducer,
                 skipAltTokens, ignoreStopWords) {
-          @SuppressWarnings("unchecked")
           @Override
           protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
-            if (tags.size() >= tagsLimit)
-              return;
-            if (offsetCorrector != null) {
-              int[] offsetPair = offsetCorrector.correctPair(startOffset, endOffset);
-              if (offsetPair == null) {
-                log.debug("Discarded offsets [{}, {}] because couldn't balance XML.",
-                        startOffset, endOffset);
-                return;
-              }
-              startOffset = offsetPair[0];
-              endOffset = offsetPair[1];
-            }
-
-            NamedList tag = new NamedList();
-            tag.add("startOffset", startOffset);
-            tag.add("endOffset", endOffset);
-            if (addMatchText)
-              tag.add("matchText", inputString.substring(startOffset, endOffset));
-            //below caches, and also flags matchDocIdsBS
-            tag.add("ids", lookupSchemaDocIds(docIdsKey));
-            tags.add(tag);
+            if (!tagCollector.tagCallback(startOffset, endOffset, lookupDocIds(docIdsKey)))
+              stop();
           }
-
-          Map<Object, List> docIdsListCache = new HashMap<>(2000);
-
-          ValueSourceAccessor uniqueKeyCache = new ValueSourceAccessor(searcher,
-                  idSchemaField.getType().getValueSource(idSchemaField, null));
-
-          @SuppressWarnings("unchecked")
-          private List lookupSchemaDocIds(Object docIdsKey) {
-            List schemaDocIds = docIdsListCache.get(docIdsKey);
-            if (schemaDocIds != null)
-              return schemaDocIds;
-            IntsRef docIds = lookupDocIds(docIdsKey);
-            //translate lucene docIds to schema ids
-            schemaDocIds = new ArrayList(docIds.length);
-            for (int i = docIds.offset; i < docIds.offset + docIds.length; i++) {
-              int docId = docIds.ints[i];
-              assert i == docIds.offset || docIds.ints[i - 1] < docId : "not sorted?";
-              matchDocIdsBS.set(docId);//also, flip docid in bitset
-              try {
-                schemaDocIds.add(uniqueKeyCache.objectVal(docId));//translates here
-              } catch (IOException e) {
-                throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
-              }
-            }
-            assert !schemaDocIds.isEmpty();
-
-            docIdsListCache.put(docIds, schemaDocIds);
-            return schemaDocIds;
-          }
-
         };
-        tagger.enableDocIdsCache(2000);//TODO configurable
+        tagger.setDocIdsCache(docIdsCaches.apply(-1));
+        tagCollector.startTagger(tagger);
+        tagger.setFirstWordFilter(getFirstWordFilter(searcher, indexedField));
+        tagger.setMaxDocFreq(maxDocFreq);
+        tagger.setStats(stats);
+        tagger.setQueryTimeout(queryTimeout);
         tagger.process();
+        if (tagger.isTimedOut())
+          tagCollector.timedOut(tagger.getPendingStartOffset());
       }
-    } finally {
-      inputReader.close();
     }
-    rsp.add("tagsCount",tags.size());
-    rsp.add("tags", tags);
-
-    rsp.setReturnFields(new SolrReturnFields( req ));
-
-    //Solr's standard name for matching docs in response
-    rsp.add("response", getDocList(rows, matchDocIdsBS));
   }
 
   private OffsetCorrector initOffsetCorrector(boolean htmlOffsetAdjust, boolean xmlOffsetAdjust,
                                               String inputString, String nonTaggableTags) {
     OffsetCorrector offsetCorrector;
     if (htmlOffsetAdjust) {
-      Set<String> nonTaggableTagSet = null;
-      if (nonTaggableTags != null) {
-        //comma delimited list
-        nonTaggableTags = nonTaggableTags.toLowerCase(Locale.ROOT);
-        final String[] strings = nonTaggableTags.split(",");
-        nonTaggableTagSet = new HashSet<>(strings.length);
-        Collections.addAll(nonTaggableTagSet, strings);
-      }
       try {
-        offsetCorrector = new HtmlOffsetCorrector(inputString, nonTaggableTagSet);
+        offsetCorrector = new HtmlOffsetCorrector(inputString, parseNonTaggableTags(nonTaggableTags));
       } catch (Exception e) {
         throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
                 "Expecting HTML but wasn't: " + e, e);
@@ -275,21 +692,35 @@ public class TaggerRequestHandler extends RequestHandlerBase {
     return offsetCorrector;
   }
 
-  private DocList getDocList(int rows, FixedBitSet matchDocIdsBS) throws IOException {
+  /** Parses the comma delimited list of {@link #NON_TAGGABLE_TAGS}; null if none. */
+  private static Set<String> parseNonTaggableTags(String nonTaggableTags) {
+    if (nonTaggableTags == null)
+      return null;
+    final String[] strings = nonTaggableTags.toLowerCase(Locale.ROOT).split(",");
+    final Set<String> nonTaggableTagSet = new HashSet<>(strings.length);
+    Collections.addAll(nonTaggableTagSet, strings);
+    return nonTaggableTagSet;
+  }
+
+  private DocList getDocList(int rows, DocIdSetBuilder matchDocIds) throws IOException {
     //Now we must supply a Solr DocList and add it to the response.
     //  Typically this is gotten via a SolrIndexSearcher.search(), but in this case we
     //  know exactly what documents to return, the order doesn't matter nor does
     //  scoring.
     //  Ideally an implementation of DocList could be directly implemented off
-    //  of a BitSet, but there are way too many methods to implement for a minor
+    //  of a DocIdSet, but there are way too many methods to implement for a minor
     //  payoff.
-    int matchDocs = matchDocIdsBS.cardinality();
-    int[] docIds = new int[ Math.min(rows, matchDocs) ];
-    DocIdSetIterator docIdIter = new BitSetIterator(matchDocIdsBS, 1);
-    for (int i = 0; i < docIds.length; i++) {
-      docIds[i] = docIdIter.nextDoc();
+    int matchDocs = 0;
+    IntArrayList docIds = new IntArrayList();
+    DocIdSetIterator docIdIter = matchDocIds.build().iterator();
+    if (docIdIter != null) {
+      for (int docId = docIdIter.nextDoc(); docId != DocIdSetIterator.NO_MORE_DOCS;
+           docId = docIdIter.nextDoc()) {
+        if (matchDocs++ < rows)
+          docIds.add(docId);
+      }
     }
-    return new DocSlice(0, docIds.length, docIds, null, matchDocs, 1f);
+    return new DocSlice(0, docIds.size(), docIds.toArray(), null, matchDocs, 1f);
   }
 
   private TagClusterReducer chooseTagClusterReducer(String overlaps) {
@@ -307,47 +738,109 @@ public class TaggerRequestHandler extends RequestHandlerBase {
     return tagClusterReducer;
   }
 
+  /** The parsed 'fq' (filter query) params, or null if there are none. */
+  private List<Query> parseFilterQueries(SolrQueryRequest req) throws SyntaxError {
+    final String[] corpusFilterQueries = req.getParams().getParams("fq");
+    if (corpusFilterQueries == null || corpusFilterQueries.length == 0)
+      return null;
+    List<Query> filterQueries = new ArrayList<Query>(corpusFilterQueries.length);
+    for (String corpusFilterQuery : corpusFilterQueries) {
+      QParser qParser = QParser.getParser(corpusFilterQuery, null, req);
+      try {
+        filterQueries.add(qParser.parse());
+      } catch (SyntaxError e) {
+        throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
+      }
+    }
+    return filterQueries;
+  }
+
   /**
-   * The set of documents matching the provided 'fq' (filter query). Don't include deleted docs
-   * either. If null is returned, then all docs are available.
+   * The set of documents matching the provided filter queries. Don't include deleted docs
+   * either.
    */
-  private Bits computeDocCorpus(SolrQueryRequest req) throws SyntaxError, IOException {
-    final String[] corpusFilterQueries = req.getParams().getParams("fq");
-    final SolrIndexSearcher searcher = req.getSearcher();
-    final Bits docBits;
-    if (corpusFilterQueries != null && corpusFilterQueries.length > 0) {
-      List<Query> filterQueries = new ArrayList<Query>(corpusFilterQueries.length);
-      for (String corpusFilterQuery : corpusFilterQueries) {
-        QParser qParser = QParser.getParser(corpusFilterQuery, null, req);
-        try {
-          filterQueries.add(qParser.parse());
-        } catch (SyntaxError e) {
-          throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, e);
-        }
+  @SuppressWarnings("unchecked")
+  static Bits computeDocCorpus(SolrIndexSearcher searcher, List<Query> filterQueries)
+          throws IOException {
+    final SolrCache<List<Query>, Bits> filterCache = searcher.getCache(FILTER_CACHE);
+    if (filterCache != null) {
+      Bits bits = filterCache.get(filterQueries);
+      if (bits == null) {
+        bits = toBitSet(searcher.getDocSet(filterQueries), searcher.maxDoc());
+        filterCache.put(filterQueries, bits);
       }
+      return bits;
+    }
+    final DocSet docSet = searcher.getDocSet(filterQueries);//hopefully in the cache
+    //note: before Solr 4.7 we could call docSet.getBits() but no longer.
+    if (docSet instanceof BitDocSet) {
+      return ((BitDocSet)docSet).getBits();
+    } else {
+      return new Bits() {
 
-      final DocSet docSet = searcher.getDocSet(filterQueries);//hopefully in the cache
-      //note: before Solr 4.7 we could call docSet.getBits() but no longer.
-      if (docSet instanceof BitDocSet) {
-        docBits = ((BitDocSet)docSet).getBits();
-      } else {
-        docBits = new Bits() {
+        @Override
+        public boolean get(int index) {
+          return docSet.exists(index);
+        }
 
-          @Override
-          public boolean get(int index) {
-            return docSet.exists(index);
-          }
+        @Override
+        public int length() {
+          return searcher.maxDoc();
+        }
+      };
+    }
+  }
 
-          @Override
-          public int length() {
-            return searcher.maxDoc();
-          }
-        };
-      }
-    } else {
-      docBits = searcher.getSlowAtomicReader().getLiveDocs();
+  /** The DocSet as bits that are fast to test, unlike a DocSet's exists() which might search. */
+  private static Bits toBitSet(DocSet docSet, int maxDoc) {
+    if (docSet instanceof BitDocSet)
+      return ((BitDocSet) docSet).getBits();
+    final FixedBitSet bitSet = new FixedBitSet(maxDoc);
+    for (DocIterator iter = docSet.iterator(); iter.hasNext(); ) {
+      bitSet.set(iter.nextDoc());
+    }
+    return bitSet;
+  }
+
+  /**
+   * Computes the bits of the old searcher's filter queries on the new searcher; reference it as
+   * the {@link #FILTER_CACHE}'s "regenerator".
+   */
+  public static class FilterBitsRegenerator implements CacheRegenerator {
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache,
+                                  SolrCache oldCache, Object oldKey, Object oldVal)
+            throws IOException {
+      final List<Query> filterQueries = (List<Query>) oldKey;
+      newCache.put(filterQueries,
+              toBitSet(newSearcher.getDocSet(filterQueries), newSearcher.maxDoc()));
+      return true;
     }
-    return docBits;
+  }
+
+  /** Gets the FirstWordFilter for the field from the searcher's cache, building it if needed.
+   * Returns null if there is no such cache configured. */
+  @SuppressWarnings("unchecked")
+  static FirstWordFilter getFirstWordFilter(SolrIndexSearcher searcher, String field)
+          throws IOException {
+    final SolrCache<String, FirstWordFilter> cache = searcher.getCache(FIRST_WORD_CACHE);
+    if (cache == null)
+      return null;
+    FirstWordFilter filter = cache.get(field);
+    if (filter == null) {
+      filter = FirstWordFilter.build(searcher.getSlowAtomicReader().terms(field));
+      cache.put(field, filter);
+    }
+    return filter;
+  }
+
+  private static boolean hasIndexedData(SolrIndexSearcher searcher, String field) throws IOException {
+    for (LeafReaderContext leaf : searcher.getIndexReader().leaves()) {
+      if (leaf.reader().terms(field) != null)
+        return true;
+    }
+    return false;
   }
 
   private boolean fieldHasIndexedStopFilter(String field, SolrQueryRequest req) {
@@ -389,6 +882,598 @@ public class TaggerRequestHandler extends RequestHandlerBase {
     return "Processes input text to find matching tokens stored in the index.";
   }
 
+  /** Receives the tags from a tagger, and adds them to a response list of tags (NamedList). */
+  private class TagCollector {
+    private final int tagsLimit;
+    private final DocIdSetBuilder matchDocIds;
+
+    // these are for the current input
+    private Consumer<NamedList> tags;
+    private int tagsCount;
+    private OffsetCorrector offsetCorrector;//null if none (or not built yet)
+    private Supplier<OffsetCorrector> lazyOffsetCorrector;//null if none or not lazy
+    private String inputString;//null if not matchText
+    private TeeWindowReader matchTextWindow;//null if not matchText or inputString is used instead
+    private TaggerStats stats;//null if not collecting them
+    private int partialResultsOffset;//-1 unless tagging timed out
+    private boolean truncated;//a tag was refused at tagsLimit, so tagging stopped
+    // tags that the offsetCorrector can't correct yet, in order
+    private final ArrayDeque<PendingTag> pendingTags = new ArrayDeque<>();
+
+    // a tag's docIds to its top docIds (per idsLimit) and their schema ids
+    private final Map<Object, ResolvedDocIds> docIdsListCache = new HashMap<>(2000);
+
+    private final List<LeafReaderContext> leaves;
+    private final SchemaField idSchemaField;
+    private final ValueSourceAccessor uniqueKeyCache;
+    private final int idsLimit;
+    private final ValueSourceAccessor idsSortValues;//null if none; then the lowest docIds are kept
+    // If true, the ids of the tags are looked up by finishInput() instead of as the tags are added.
+    //   These are parallel lists of the docIds, and the tags' id lists to fill in.
+    private final boolean resolveIdsLater;
+    private final List<IntsRef> unresolvedDocIds = new ArrayList<>();
+    private final List<List> unresolvedIdLists = new ArrayList<>();
+    // the matching docIds of the current input, if recorded (for the result cache); else null
+    private final IntArrayList inputDocIds;
+
+    TagCollector(SolrIndexSearcher searcher, SchemaField idSchemaField, int tagsLimit,
+                 int idsLimit, SchemaField idsSortField, DocIdSetBuilder matchDocIds,
+                 boolean resolveIdsLater, boolean recordInputDocIds) {
+      this.tagsLimit = tagsLimit;
+      this.idsLimit = idsLimit;
+      this.idsSortValues = idsSortField == null ? null : new ValueSourceAccessor(searcher,
+              idsSortField.getType().getValueSource(idsSortField, null));
+      this.matchDocIds = matchDocIds;
+      this.leaves = searcher.getIndexReader().leaves();
+      this.idSchemaField = idSchemaField;
+      this.uniqueKeyCache = new ValueSourceAccessor(searcher,
+              idSchemaField.getType().getValueSource(idSchemaField, null));
+      this.resolveIdsLater = resolveIdsLater;
+      this.inputDocIds = recordInputDocIds ? new IntArrayList() : null;
+    }
+
+    /** Prepares to receive the tags of another input text. */
+    void startInput(Consumer<NamedList> tags, OffsetCorrector offsetCorrector,
+                    Supplier<OffsetCorrector> lazyOffsetCorrector, String inputString,
+                    TeeWindowReader matchTextWindow, TaggerStats stats) {
+      this.tags = tags;
+      this.tagsCount = 0;
+      this.offsetCorrector = offsetCorrector;
+      this.lazyOffsetCorrector = lazyOffsetCorrector;
+      this.inputString = inputString;
+      this.matchTextWindow = matchTextWindow;
+      this.stats = stats;
+      this.partialResultsOffset = -1;
+      this.truncated = false;
+      if (inputDocIds != null)
+        inputDocIds.clear();
+      this.pendingTags.clear();
+    }
+
+    /** Called after the input has been tagged; adds any pending tags, and fills in their ids. */
+    void finishInput() throws IOException {
+      if (lazyOffsetCorrector != null && !pendingTags.isEmpty())
+        buildOffsetCorrector();
+      if (partialResultsOffset >= 0) {
+        // A streaming offsetCorrector hasn't seen the markup after where tagging timed out, so
+        //   tags it can't correct yet are dropped, and the input is only complete up to them.
+        addCorrectableTags(false);
+        if (!pendingTags.isEmpty()) {
+          partialResultsOffset = Math.min(partialResultsOffset, pendingTags.peek().startOffset);
+          pendingTags.clear();
+        }
+      } else {
+        addCorrectableTags(true);
+      }
+      final long startNanos = stats != null ? System.nanoTime() : 0;
+      resolveIds();
+      if (stats != null)
+        stats.idResolutionNanos += System.nanoTime() - startNanos;
+    }
+
+    /** Tagging stopped early; the input was tagged up to this offset. */
+    void timedOut(int offset) {
+      partialResultsOffset = offset;
+    }
+
+    /** The offset the input was tagged up to if it timed out, else -1. */
+    int getPartialResultsOffset() {
+      return partialResultsOffset;
+    }
+
+    /** Whether a tag was refused because there were tagsLimit tags already. */
+    boolean isTruncated() {
+      return truncated;
+    }
+
+    /** The window of the matchText (if any) need only keep what this tagger hasn't tagged yet. */
+    void startTagger(Tagger tagger) {
+      if (matchTextWindow != null)
+        matchTextWindow.setDiscardableBefore(tagger::getPendingStartOffset);
+    }
+
+    /** Adds (or queues) the tag.  Returns false once a tag is refused because tagsLimit tags have
+     * been added, so the tagger can stop.  (Queued tags don't count; the offsetCorrector might
+     * discard them.) */
+    boolean tagCallback(int startOffset, int endOffset, IntsRef docIds) {
+      if (truncated)
+        return false;
+      if (lazyOffsetCorrector != null) {
+        // corrected together by finishInput(), or once there might be enough of them
+        pendingTags.add(new PendingTag(startOffset, endOffset, docIds));
+        if (tagsCount + pendingTags.size() >= tagsLimit) {
+          buildOffsetCorrector();//subsequent tags are corrected as they come
+          addCorrectableTags(true);
+        }
+      } else if (pendingTags.isEmpty()
+              && (offsetCorrector == null || offsetCorrector.isCorrectable(startOffset, endOffset))) {
+        offerTag(startOffset, endOffset, docIds);
+      } else {
+        // wait until the markup around it has been seen (and any tags before it are added)
+        pendingTags.add(new PendingTag(startOffset, endOffset, docIds));
+        addCorrectableTags(false);
+      }
+      return !truncated;
+    }
+
+    /** Adds the tag if there are fewer than tagsLimit tags; else it's refused and we're truncated,
+     * unless the offsetCorrector would discard it anyway. */
+    private void offerTag(int startOffset, int endOffset, IntsRef docIds) {
+      if (tagsCount < tagsLimit)
+        addTag(startOffset, endOffset, docIds);
+      else if (offsetCorrector == null || offsetCorrector.correctPair(startOffset, endOffset) != null)
+        truncated = true;
+    }
+
+    private void buildOffsetCorrector() {
+      final long startNanos = stats != null ? System.nanoTime() : 0;
+      offsetCorrector = lazyOffsetCorrector.get();
+      lazyOffsetCorrector = null;
+      if (stats != null)
+        stats.offsetCorrectionNanos += System.nanoTime() - startNanos;
+    }
+
+    private void addCorrectableTags(boolean all) {
+      while (!pendingTags.isEmpty() && !truncated) {
+        final PendingTag pendingTag = pendingTags.peek();
+        if (!all && !offsetCorrector.isCorrectable(pendingTag.startOffset, pendingTag.endOffset))
+          return;
+        pendingTags.remove();
+        offerTag(pendingTag.startOffset, pendingTag.endOffset, pendingTag.docIds);
+      }
+      pendingTags.clear();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addTag(int startOffset, int endOffset, IntsRef docIds) {
+      if (offsetCorrector != null) {
+        final long startNanos = stats != null ? System.nanoTime() : 0;
+        int[] offsetPair = offsetCorrector.correctPair(startOffset, endOffset);
+        if (stats != null)
+          stats.offsetCorrectionNanos += System.nanoTime() - startNanos;
+        if (offsetPair == null) {
+          log.debug("Discarded offsets [{}, {}] because couldn't balance XML.",
+                  startOffset, endOffset);
+          return;
+        }
+        startOffset = offsetPair[0];
+        endOffset = offsetPair[1];
+      }
+
+      NamedList tag = new NamedList();
+      tag.add("startOffset", startOffset);
+      tag.add("endOffset", endOffset);
+      if (inputString != null)
+        tag.add("matchText", inputString.substring(startOffset, endOffset));
+      else if (matchTextWindow != null)
+        tag.add("matchText", matchTextWindow.substring(startOffset, endOffset));
+      //below caches, and also adds to matchDocIds
+      tag.add("ids", lookupSchemaDocIds(docIds));
+      tagsCount++;
+      if (stats != null)
+        stats.tags++;
+      tags.accept(tag);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List lookupSchemaDocIds(IntsRef docIds) {
+      final ResolvedDocIds cached = docIdsListCache.get(docIds);
+      if (cached != null) {
+        if (inputDocIds != null)
+          recordInputDocIds(cached.topDocIds);//(again; maybe for another input)
+        return cached.schemaDocIds;
+      }
+      final IntsRef allDocIds = docIds;//the cache key
+      docIds = topDocIds(docIds);
+      if (inputDocIds != null)
+        recordInputDocIds(docIds);
+      //translate lucene docIds to schema ids
+      final long startNanos = stats != null && !resolveIdsLater ? System.nanoTime() : 0;
+      final List schemaDocIds = new ArrayList(docIds.length);
+      final DocIdSetBuilder.BulkAdder matchDocIdsAdder = matchDocIds.grow(docIds.length);
+      for (int i = docIds.offset; i < docIds.offset + docIds.length; i++) {
+        int docId = docIds.ints[i];
+        assert i == docIds.offset || docIds.ints[i - 1] < docId : "not sorted?";
+        matchDocIdsAdder.add(docId);//also, add to the matching docs
+        if (resolveIdsLater)
+          continue;
+        try {
+          schemaDocIds.add(uniqueKeyCache.objectVal(docId));//translates here
+        } catch (IOException e) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+        }
+      }
+      if (resolveIdsLater) {
+        unresolvedDocIds.add(docIds);
+        unresolvedIdLists.add(schemaDocIds);
+      } else if (stats != null) {
+        stats.idResolutionNanos += System.nanoTime() - startNanos;
+      }
+
+      docIdsListCache.put(allDocIds, new ResolvedDocIds(docIds, schemaDocIds));
+      return schemaDocIds;
+    }
+
+    private void recordInputDocIds(IntsRef docIds) {
+      inputDocIds.add(docIds.ints, docIds.offset, docIds.length);
+    }
+
+    /** The distinct matching docIds of the current input, sorted; or null if not recorded. */
+    int[] getInputDocIds() {
+      if (inputDocIds == null)
+        return null;
+      final int[] docIds = inputDocIds.toArray();
+      Arrays.sort(docIds);
+      int numDistinct = 0;
+      for (int i = 0; i < docIds.length; i++) {
+        if (i == 0 || docIds[i] != docIds[i - 1])
+          docIds[numDistinct++] = docIds[i];
+      }
+      return Arrays.copyOf(docIds, numDistinct);
+    }
+
+    /**
+     * The top idsLimit of the sorted docIds, by idsSortValues descending (docs without a value
+     * last, ties by docId), in docId order.  The candidates are kept in a bounded heap whose root
+     * is the worst of them.
+     */
+    private IntsRef topDocIds(IntsRef docIds) {
+      if (docIds.length <= idsLimit)
+        return docIds;
+      if (idsSortValues == null)
+        return new IntsRef(docIds.ints, docIds.offset, idsLimit);
+      final int[] heapDocIds = new int[idsLimit];
+      final double[] heapValues = new double[idsLimit];
+      int size = 0;
+      try {
+        for (int i = docIds.offset; i < docIds.offset + docIds.length; i++) {
+          final int docId = docIds.ints[i];
+          final double value = idsSortValues.exists(docId)
+                  ? idsSortValues.doubleVal(docId) : Double.NEGATIVE_INFINITY;
+          if (size < idsLimit) {
+            // add at the bottom and sift up
+            int pos = size++;
+            while (pos > 0) {
+              final int parent = (pos - 1) >>> 1;
+              if (!isWorse(value, docId, heapValues[parent], heapDocIds[parent]))
+                break;
+              heapValues[pos] = heapValues[parent];
+              heapDocIds[pos] = heapDocIds[parent];
+              pos = parent;
+            }
+            heapValues[pos] = value;
+            heapDocIds[pos] = docId;
+          } else if (value > heapValues[0]) {//(docIds ascend, so a tie is worse)
+            // replace the root and sift down
+            int pos = 0;
+            while (true) {
+              int child = 2 * pos + 1;
+              if (child >= size)
+                break;
+              if (child + 1 < size && isWorse(heapValues[child + 1], heapDocIds[child + 1],
+                      heapValues[child], heapDocIds[child]))
+                child++;
+              if (!isWorse(heapValues[child], heapDocIds[child], value, docId))
+                break;
+              heapValues[pos] = heapValues[child];
+              heapDocIds[pos] = heapDocIds[child];
+              pos = child;
+            }
+            heapValues[pos] = value;
+            heapDocIds[pos] = docId;
+          }
+        }
+      } catch (IOException e) {
+        throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+      }
+      Arrays.sort(heapDocIds);
+      return new IntsRef(heapDocIds, 0, size);
+    }
+
+    private boolean isWorse(double value, int docId, double otherValue, int otherDocId) {
+      return value < otherValue || (value == otherValue && docId > otherDocId);
+    }
+
+    /**
+     * Fills in the id lists of the tags added since the last call.  The docIds are looked up
+     * together in ascending order, which is how DocValues (and FunctionValues) are read
+     * efficiently, instead of in the order of the text.
+     */
+    @SuppressWarnings("unchecked")
+    private void resolveIds() throws IOException {
+      if (unresolvedDocIds.isEmpty())
+        return;
+      // sorted distinct docIds
+      int numDocIds = 0;
+      for (IntsRef docIds : unresolvedDocIds) {
+        numDocIds += docIds.length;
+      }
+      int[] sortedDocIds = new int[numDocIds];
+      numDocIds = 0;
+      for (IntsRef docIds : unresolvedDocIds) {
+        System.arraycopy(docIds.ints, docIds.offset, sortedDocIds, numDocIds, docIds.length);
+        numDocIds += docIds.length;
+      }
+      Arrays.sort(sortedDocIds);
+      int numDistinct = 0;
+      for (int i = 0; i < sortedDocIds.length; i++) {
+        if (i == 0 || sortedDocIds[i] != sortedDocIds[i - 1])
+          sortedDocIds[numDistinct++] = sortedDocIds[i];
+      }
+      sortedDocIds = Arrays.copyOf(sortedDocIds, numDistinct);
+
+      // look up their ids, a segment at a time
+      final Object[] ids = new Object[numDistinct];
+      // StrField's indexed form is its value; otherwise defer to its ValueSource
+      final boolean useSortedDocValues =
+              idSchemaField.hasDocValues() && idSchemaField.getType() instanceof StrField;
+      LeafReaderContext leaf = null;
+      SortedDocValues sortedDocValues = null;
+      for (int i = 0; i < numDistinct; i++) {
+        final int docId = sortedDocIds[i];
+        if (leaf == null || docId >= leaf.docBase + leaf.reader().maxDoc()) {
+          leaf = leaves.get(ReaderUtil.subIndex(docId, leaves));
+          if (useSortedDocValues)
+            sortedDocValues = DocValues.getSorted(leaf.reader(), idSchemaField.getName());
+        }
+        if (sortedDocValues != null && sortedDocValues.advanceExact(docId - leaf.docBase)) {
+          ids[i] = idSchemaField.getType().toObject(idSchemaField, sortedDocValues.binaryValue());
+        } else {
+          ids[i] = uniqueKeyCache.objectVal(docId);
+        }
+      }
+
+      // fill in the tags' id lists
+      for (int t = 0; t < unresolvedDocIds.size(); t++) {
+        final IntsRef docIds = unresolvedDocIds.get(t);
+        final List idList = unresolvedIdLists.get(t);
+        for (int i = docIds.offset; i < docIds.offset + docIds.length; i++) {
+          idList.add(ids[Arrays.binarySearch(sortedDocIds, docIds.ints[i])]);
+        }
+      }
+      unresolvedDocIds.clear();
+      unresolvedIdLists.clear();
+    }
+  }
+
+  private static class PendingTag {
+    final int startOffset;
+    final int endOffset;
+    final IntsRef docIds;
+
+    PendingTag(int startOffset, int endOffset, IntsRef docIds) {
+      this.startOffset = startOffset;
+      this.endOffset = endOffset;
+      this.docIds = docIds;
+    }
+  }
+
+  /** A tag's top docIds (per {@link #IDS_LIMIT}), and their schema ids. */
+  private static class ResolvedDocIds {
+    final IntsRef topDocIds;
+    final List schemaDocIds;
+
+    ResolvedDocIds(IntsRef topDocIds, List schemaDocIds) {
+      this.topDocIds = topDocIds;
+      this.schemaDocIds = schemaDocIds;
+    }
+  }
+
+  /** Tags the input, passing each tag to the consumer. */
+  private interface TaggingRun {
+    void run(Consumer<NamedList> tagConsumer) throws IOException;
+  }
+
+  /** Tags an input text, returning all of its tags. */
+  private interface InputTagger {
+    TagResultCache.TagResult tag(Reader inputReader) throws IOException;
+  }
+
+  /** The start of an input text, up to a maximum length, read to get the text if it's no
+   * longer than that.  The whole input can still be read from {@link #reader()}. */
+  private static final class BufferedInput {
+    private final char[] buf;
+    private final int length;
+    private final Reader rest;//null if the input was read to its end
+
+    private BufferedInput(char[] buf, int length, Reader rest) {
+      this.buf = buf;
+      this.length = length;
+      this.rest = rest;
+    }
+
+    /** Reads up to maxLength + 1 chars of the input, which isn't closed. */
+    static BufferedInput read(Reader input, int maxLength) throws IOException {
+      maxLength = Math.min(maxLength, Integer.MAX_VALUE - 16);//max array size
+      char[] buf = new char[Math.min(maxLength + 1, 8192)];
+      int length = 0;
+      while (length <= maxLength) {
+        if (length == buf.length)
+          buf = Arrays.copyOf(buf, (int) Math.min(buf.length * 2L, maxLength + 1L));
+        final int read = input.read(buf, length, buf.length - length);
+        if (read == -1) {
+          input.close();
+          return new BufferedInput(buf, length, null);
+        }
+        length += read;
+      }
+      return new BufferedInput(buf, length, input);
+    }
+
+    /** The whole text, or null if it's longer than the maximum length. */
+    String text() {
+      return rest == null ? new String(buf, 0, length) : null;
+    }
+
+    /** The whole input, from its start.  Closing it closes the input. */
+    Reader reader() {
+      if (rest == null)
+        return new CharArrayReader(buf, 0, length);
+      return new Reader() {
+        private int pos = 0;
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+          if (pos < length) {
+            final int n = Math.min(len, length - pos);
+            System.arraycopy(buf, pos, cbuf, off, n);
+            pos += n;
+            return n;
+          }
+          return rest.read(cbuf, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+          rest.close();
+        }
+      };
+    }
+  }
+
+  /** The "tags" of the response when streaming; tags as they're found while the response is
+   * written.  The status of the tagging follows them in the response, as {@link #lazy} values.
+   * An error while tagging ends the tags early and is reported in this status too, since the
+   * response has already started. */
+  private class TagStream implements IteratorWriter {
+    private final TaggingRun taggingRun;
+    private final TagCollector tagCollector;
+    private boolean ran = false;
+    private int tagsCount = 0;
+    private Exception error;//while tagging; null if none
+
+    TagStream(TaggingRun taggingRun, TagCollector tagCollector) {
+      this.taggingRun = taggingRun;
+      this.tagCollector = tagCollector;
+    }
+
+    @Override
+    public void writeIter(ItemWriter itemWriter) throws IOException {
+      if (ran)
+        throw new IllegalStateException("tags can only be written once");
+      final IOException[] writeError = new IOException[1];
+      run(tag -> {
+        try {
+          itemWriter.add(tag);
+        } catch (IOException e) {
+          writeError[0] = e;
+          throw new UncheckedIOException(e);
+        }
+      });
+      if (writeError[0] != null)
+        throw writeError[0];//the response can't be written; not a tagging error
+    }
+
+    /** Ensures the tagging is done, even if the tags weren't written. */
+    void finish() {
+      if (!ran)
+        run(tag -> {});
+    }
+
+    private void run(Consumer<NamedList> tagConsumer) {
+      ran = true;
+      try {
+        taggingRun.run(tag -> {
+          tagConsumer.accept(tag);
+          tagsCount++;
+        });
+      } catch (IOException | RuntimeException e) {
+        if (e instanceof UncheckedIOException)
+          return;//writeIter throws it
+        log.error("Error while streaming tags; the tags end early", e);
+        error = e;
+      }
+    }
+
+    /** A response value of the status, computed once the tags are. */
+    WriteableValue lazy(Supplier<Object> status) {
+      return new WriteableValue() {
+        @Override
+        public void write(String name, TextResponseWriter writer) throws IOException {
+          finish();
+          writer.writeVal(name, status.get());
+        }
+
+        @Override
+        public Object resolve(Object o, JavaBinCodec codec) throws IOException {
+          finish();
+          return status.get();
+        }
+      };
+    }
+
+    void addStatus(SolrQueryResponse rsp) {
+      rsp.add("tagsCount", lazy(() -> tagsCount));
+      rsp.add(TRUNCATED, lazy(tagCollector::isTruncated));
+      rsp.add(PARTIAL_RESULTS_OFFSET, lazy(tagCollector::getPartialResultsOffset));
+      rsp.add("error", lazy(() -> error == null ? null : error.toString()));
+    }
+  }
+
+  /** A DocList that's computed when first needed. */
+  private static class LazyDocList implements DocList {
+    private final Callable<DocList> supplier;
+    private DocList docList;
+
+    LazyDocList(Callable<DocList> supplier) {
+      this.supplier = supplier;
+    }
+
+    private DocList get() {
+      if (docList == null) {
+        try {
+          docList = supplier.call();
+        } catch (RuntimeException e) {
+          throw e;
+        } catch (Exception e) {
+          throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+        }
+      }
+      return docList;
+    }
+
+    @Override
+    public int offset() { return get().offset(); }
+
+    @Override
+    public int size() { return get().size(); }
+
+    @Override
+    public int matches() { return get().matches(); }
+
+    @Override
+    public DocList subset(int offset, int len) { return get().subset(offset, len); }
+
+    @Override
+    public DocIterator iterator() { return get().iterator(); }
+
+    @Override
+    public boolean hasScores() { return get().hasScores(); }
+
+    @Override
+    public float maxScore() { return get().maxScore(); }
+  }
+
   /** See LUCENE-4541 or {@link org.apache.solr.response.transform.ValueSourceAugmenter}. */
   static class ValueSourceAccessor {
     private final List<LeafReaderContext> readerContexts;
@@ -406,20 +1491,33 @@ public class TaggerRequestHandler extends RequestHandlerBase {
     }
 
     Object objectVal(int topDocId) throws IOException {
-      // lookup segment level stuff:
-      int segIdx = ReaderUtil.subIndex(topDocId, readerContexts);
-      LeafReaderContext rcontext = readerContexts.get(segIdx);
-      int segDocId = topDocId - rcontext.docBase;
+      final int segIdx = ReaderUtil.subIndex(topDocId, readerContexts);
+      final int segDocId = topDocId - readerContexts.get(segIdx).docBase;
+      return functionValues(segIdx, segDocId).objectVal(segDocId);
+    }
+
+    boolean exists(int topDocId) throws IOException {
+      final int segIdx = ReaderUtil.subIndex(topDocId, readerContexts);
+      final int segDocId = topDocId - readerContexts.get(segIdx).docBase;
+      return functionValues(segIdx, segDocId).exists(segDocId);
+    }
+
+    double doubleVal(int topDocId) throws IOException {
+      final int segIdx = ReaderUtil.subIndex(topDocId, readerContexts);
+      final int segDocId = topDocId - readerContexts.get(segIdx).docBase;
+      return functionValues(segIdx, segDocId).doubleVal(segDocId);
+    }
+
+    private FunctionValues functionValues(int segIdx, int segDocId) throws IOException {
       // unfortunately Lucene 7.0 requires forward only traversal (with no reset method).
       //   So we need to track our last docId (per segment) and re-fetch the FunctionValues. :-(
       FunctionValues functionValues = functionValuesPerSeg[segIdx];
       if (functionValues == null || segDocId < functionValuesDocIdPerSeg[segIdx]) {
-        functionValues = functionValuesPerSeg[segIdx] = valueSource.getValues(fContext, rcontext);
+        functionValues = functionValuesPerSeg[segIdx] =
+                valueSource.getValues(fContext, readerContexts.get(segIdx));
       }
       functionValuesDocIdPerSeg[segIdx] = segDocId;
-
-      // get value:
-      return functionValues.objectVal(segDocId);
+      return functionValues;
     }
   }
 
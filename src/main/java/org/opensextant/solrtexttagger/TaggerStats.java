@@ -0,0 +1,87 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+/**
+ * Counts, and times in nanoseconds, of the phases of tagging a text.  Set one on a {@link Tagger}
+ * or {@link MultiSegmentTagger} to have it accumulate them; this costs a couple of
+ * {@link System#nanoTime()} calls per token and per lookup.  Not thread-safe.
+ */
+public class TaggerStats {
+  long analysisNanos;//reading tokens from the TokenStream
+  long seekNanos;//seeking the terms dictionary
+  long postingsNanos;//reading the docIds of a term from its postings
+  long reduceNanos;//TagClusterReducer
+  long offsetCorrectionNanos;//OffsetCorrector (by TaggerRequestHandler)
+  long idResolutionNanos;//docIds to uniqueKeys (by TaggerRequestHandler)
+
+  long tokens;
+  long seeks;
+  long seekHits;//seeks finding a term with (or prefixing) a name
+  long tags;//(by TaggerRequestHandler)
+  long docIdsCacheLookups;
+  long docIdsCacheHits;
+  long maxDocFreqSkips;//terms not matched for having more than maxDocFreq docs
+
+  /** Adds the other's stats to these. */
+  public void add(TaggerStats other) {
+    analysisNanos += other.analysisNanos;
+    seekNanos += other.seekNanos;
+    postingsNanos += other.postingsNanos;
+    reduceNanos += other.reduceNanos;
+    offsetCorrectionNanos += other.offsetCorrectionNanos;
+    idResolutionNanos += other.idResolutionNanos;
+    tokens += other.tokens;
+    seeks += other.seeks;
+    seekHits += other.seekHits;
+    tags += other.tags;
+    docIdsCacheLookups += other.docIdsCacheLookups;
+    docIdsCacheHits += other.docIdsCacheHits;
+    maxDocFreqSkips += other.maxDocFreqSkips;
+  }
+
+  public long getAnalysisNanos() { return analysisNanos; }
+  public long getSeekNanos() { return seekNanos; }
+  public long getPostingsNanos() { return postingsNanos; }
+  public long getReduceNanos() { return reduceNanos; }
+  public long getOffsetCorrectionNanos() { return offsetCorrectionNanos; }
+  public long getIdResolutionNanos() { return idResolutionNanos; }
+
+  public long getTokens() { return tokens; }
+  public long getSeeks() { return seeks; }
+  public long getSeekHits() { return seekHits; }
+  public long getTags() { return tags; }
+  public long getDocIdsCacheLookups() { return docIdsCacheLookups; }
+  public long getDocIdsCacheHits() { return docIdsCacheHits; }
+  public long getMaxDocFreqSkips() { return maxDocFreqSkips; }
+
+  @Override
+  public String toString() {
+    return "TaggerStats{tokens=" + tokens + ", seeks=" + seeks + ", seekHits=" + seekHits
+            + ", tags=" + tags + ", docIdsCacheHits=" + docIdsCacheHits + "/" + docIdsCacheLookups
+            + ", maxDocFreqSkips=" + maxDocFreqSkips
+            + ", analysisNanos=" + analysisNanos + ", seekNanos=" + seekNanos
+            + ", postingsNanos=" + postingsNanos + ", reduceNanos=" + reduceNanos
+            + ", offsetCorrectionNanos=" + offsetCorrectionNanos
+            + ", idResolutionNanos=" + idResolutionNanos + "}";
+  }
+}
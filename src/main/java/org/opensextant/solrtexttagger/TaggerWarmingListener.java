@@ -0,0 +1,216 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.apache.solr.common.params.EventParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStream;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.core.AbstractSolrEventListener;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrRequestHandler;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Warms a new searcher for a {@link TaggerRequestHandler} by tagging texts with it before the
+ * searcher is registered.  This builds what the tagger keeps per searcher: the first word filter,
+ * the fq bits, the docIds cache entries, and the uniqueKey docValues.  Configure it for both the
+ * "firstSearcher" and "newSearcher" events.  With "replayCount", texts are recorded from when the
+ * core has loaded.  Arguments:
+ * <ul>
+ *   <li>"handler": the name of the tagger request handler; defaults to "/tag".</li>
+ *   <li>"texts": an array of texts to tag, with the handler's defaults.  If there are none and
+ *   there are no recent texts, an empty text is tagged.</li>
+ *   <li>"replayCount": how many of the most recently tagged texts to tag again, with the params
+ *   they were tagged with; defaults to 0.  Recording them has the handler read up to
+ *   "replayMaxLength" chars of each input text (of a non-streamTags request) into memory before
+ *   tagging it.</li>
+ *   <li>"replayMaxLength": texts longer than this many chars aren't recorded; defaults to
+ *   10000.</li>
+ * </ul>
+ */
+public class TaggerWarmingListener extends AbstractSolrEventListener {
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private String handlerName;
+  private List<String> texts;
+  private int replayCount;
+  private int replayMaxLength;
+
+  public TaggerWarmingListener(SolrCore core) {
+    super(core);
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public void init(NamedList args) {
+    super.init(args);
+    SolrParams params = SolrParams.toSolrParams(args);
+    handlerName = params.get("handler", "/tag");
+    List<String> textsArg = (List<String>) args.get("texts");
+    texts = textsArg == null ? Collections.emptyList() : textsArg;
+    replayCount = params.getInt("replayCount", 0);
+    replayMaxLength = params.getInt("replayMaxLength", 10000);
+    if (replayCount > 0) {
+      // Start recording once the core has loaded (the handlers exist then), not at the first
+      //  commit.  It's harmless if this listener is configured for firstSearcher too.
+      getCore().registerFirstSearcherListener(new AbstractSolrEventListener(getCore()) {
+        @Override
+        public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+          final TaggerRequestHandler handler = getTaggerHandler();
+          if (handler != null)
+            handler.recordRecentTexts(replayCount, replayMaxLength);
+        }
+      });
+    }
+  }
+
+  /** The tagger handler to warm, or null (logging a warning) if it isn't one. */
+  private TaggerRequestHandler getTaggerHandler() {
+    final SolrRequestHandler handler = getCore().getRequestHandler(handlerName);
+    if (!(handler instanceof TaggerRequestHandler)) {
+      log.warn("Can't warm; {} isn't a {}", handlerName, TaggerRequestHandler.class.getSimpleName());
+      return null;
+    }
+    return (TaggerRequestHandler) handler;
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    final SolrCore core = getCore();
+    final TaggerRequestHandler handler = getTaggerHandler();
+    if (handler == null)
+      return;
+    final String event = currentSearcher == null ? "firstSearcher" : "newSearcher";
+    final List<RecentTexts.Entry> warmings = new ArrayList<>();
+    for (String text : texts) {
+      warmings.add(new RecentTexts.Entry(new ModifiableSolrParams(), text));
+    }
+    if (replayCount > 0) {
+      warmings.addAll(handler.recordRecentTexts(replayCount, replayMaxLength).get());
+    }
+    if (warmings.isEmpty()) {
+      warmings.add(new RecentTexts.Entry(new ModifiableSolrParams(), ""));
+    }
+
+    final long startNanos = System.nanoTime();
+    for (RecentTexts.Entry warming : warmings) {
+      final ModifiableSolrParams params = new ModifiableSolrParams(warming.params);
+      params.set(EventParams.EVENT, event);//also keeps it from being recorded as a recent text
+      final LocalSolrQueryRequest req = new LocalSolrQueryRequest(core, params) {
+        @Override
+        public SolrIndexSearcher getSearcher() {
+          return newSearcher;
+        }
+
+        @Override
+        public void close() {
+        }
+      };
+      req.setContentStreams(
+              Collections.<ContentStream>singleton(new ContentStreamBase.StringStream(warming.text)));
+      final SolrQueryResponse rsp = new SolrQueryResponse();
+      SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+      try {
+        // not core.execute(), which would count it in the handler's request and timing metrics
+        handler.handleRequestBody(req, rsp);
+      } catch (Exception e) {
+        log.warn("Warming request failed", e);
+      } finally {
+        SolrRequestInfo.clearRequestInfo();
+      }
+    }
+    log.info("{} tagger warming of {} texts took {}ms", event, warmings.size(),
+            (System.nanoTime() - startNanos) / 1000000);
+  }
+
+  /**
+   * The most recently tagged texts (and their request params), kept by a
+   * {@link TaggerRequestHandler} for a {@link TaggerWarmingListener} to replay.  Thread-safe.
+   */
+  static class RecentTexts {
+
+    static class Entry {
+      final SolrParams params;
+      final String text;
+
+      Entry(SolrParams params, String text) {
+        this.params = params;
+        this.text = text;
+      }
+    }
+
+    private final Entry[] ring;
+    private final int maxLength;
+    private int next;//index in ring to add to
+    private int size;
+
+    RecentTexts(int capacity, int maxLength) {
+      this.ring = new Entry[capacity];
+      this.maxLength = maxLength;
+    }
+
+    int capacity() {
+      return ring.length;
+    }
+
+    /** Longer texts aren't recorded; no more of an input than this (plus one) need be read. */
+    int maxLength() {
+      return maxLength;
+    }
+
+    /** Records the text, unless it's too long.  The params are copied. */
+    void add(SolrParams params, String text) {
+      if (text.length() > maxLength)
+        return;
+      final ModifiableSolrParams paramsCopy = new ModifiableSolrParams(params);
+      paramsCopy.remove(TaggerRequestHandler.BATCH);//it's one text of the batch
+      final Entry entry = new Entry(paramsCopy, text);
+      synchronized (this) {
+        ring[next] = entry;
+        next = (next + 1) % ring.length;
+        size = Math.min(size + 1, ring.length);
+      }
+    }
+
+    /** The recorded texts, the oldest first. */
+    synchronized List<Entry> get() {
+      final List<Entry> entries = new ArrayList<>(size);
+      for (int i = 0; i < size; i++) {
+        entries.add(ring[(next - size + i + ring.length) % ring.length]);
+      }
+      return entries;
+    }
+  }
+}
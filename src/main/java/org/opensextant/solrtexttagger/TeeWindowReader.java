@@ -0,0 +1,113 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.function.IntSupplier;
+
+/**
+ * A Reader that keeps a copy of the characters read through it in a sliding window, so that the
+ * text of tags (matchText) can be cut from it without holding the entire input.  Characters
+ * before the offset given by {@link #setDiscardableBefore(IntSupplier)} are discarded as more is
+ * read; it should be the start offset of the earliest tag not yet emitted.  Thus memory is bounded
+ * by the largest tag cluster plus what the tokenizer reads ahead.
+ */
+final class TeeWindowReader extends FilterReader {
+
+  private final StringBuilder window = new StringBuilder();
+  private int windowStartOffset = 0;//the input offset of the window's first char
+  private IntSupplier discardableBefore = () -> 0;
+
+  TeeWindowReader(Reader in) {
+    super(in);
+  }
+
+  void setDiscardableBefore(IntSupplier discardableBefore) {
+    this.discardableBefore = discardableBefore;
+  }
+
+  /** The input text between these offsets, which must not have been discarded. */
+  String substring(int startOffset, int endOffset) {
+    assert startOffset >= windowStartOffset : "discarded already";
+    return window.substring(startOffset - windowStartOffset, endOffset - windowStartOffset);
+  }
+
+  private void discard() {
+    final int discardLen = Math.min(discardableBefore.getAsInt() - windowStartOffset,
+            window.length());
+    // only when it's at least half, so that the cost of shifting what remains is amortized
+    if (discardLen > 0 && discardLen >= window.length() / 2) {
+      window.delete(0, discardLen);
+      windowStartOffset += discardLen;
+    }
+  }
+
+  @Override
+  public int read() throws IOException {
+    discard();
+    final int c = in.read();
+    if (c != -1)
+      window.append((char) c);
+    return c;
+  }
+
+  @Override
+  public int read(char[] cbuf, int off, int len) throws IOException {
+    discard();
+    final int n = in.read(cbuf, off, len);
+    if (n > 0)
+      window.append(cbuf, off, n);
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    //read through, to keep the window's offsets right
+    final char[] buf = new char[(int) Math.min(n, 1024)];
+    long skipped = 0;
+    while (skipped < n) {
+      final int r = read(buf, 0, (int) Math.min(n - skipped, buf.length));
+      if (r == -1)
+        break;
+      skipped += r;
+    }
+    return skipped;
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  @Override
+  public void mark(int readAheadLimit) throws IOException {
+    throw new IOException("mark() not supported");
+  }
+
+  @Override
+  public void reset() throws IOException {
+    throw new IOException("reset() not supported");
+  }
+}
@@ -30,35 +30,51 @@ import org.apache.lucene.util.BytesRefBuilder;
 import org.apache.lucene.util.IntsRef;
 
 import java.io.IOException;
-import java.util.Map;
 
 /**
- * Cursor into the terms that advances by prefix.
+ * Cursor into the terms that advances by prefix.  Subsequent advances continue from the term the
+ * TermsEnum is positioned on when possible, avoiding a seek.
  */
 class TermPrefixCursor {
 
   //Note: this could be a lot more efficient if MemoryPostingsFormat supported ordinal lookup.
   // Maybe that could be added to Lucene.
 
-  // TODO add bloom filter of hashcode of first ~ 6 bytes to avoid lookup into terms dict?
+  //Note: FST50's TermsEnum (via FSTEnum) already resumes seeks from the prefix it shares with the
+  // previous seek, so re-seeking a longer phrase doesn't re-walk all arcs.  But it still does walk
+  // from there, and it decodes the term's metadata again.  We can often do better; see
+  // seekCeilFromCurrent().
 
-  private static final byte SEPARATOR_CHAR = ' ';
+  // See FirstWordFilter, which Tagger uses to avoid lookup into terms dict for most first words.
+
+  static final byte SEPARATOR_CHAR = ' ';
   private static final IntsRef EMPTY_INTSREF = new IntsRef();
 
   private final TermsEnum termsEnum;
   private final Bits liveDocs;
-  private final Map<BytesRef, IntsRef> docIdsCache;
+  private final DocIdsCache docIdsCache;
+  private final int maxDocFreq;
+  private final TaggerStats stats;//null if none
 
   private BytesRef prefixBuf;//we append to this
   private BytesRefBuilder prefixBufBuilder = new BytesRefBuilder();
   private boolean prefixBufOnLoan;//if true, PB is loaned; needs to be copied
   private PostingsEnum postingsEnum;
   private IntsRef docIds;
+  /** If true, termsEnum is positioned on prefixBuf. Otherwise it's on the term after it. */
+  private boolean termsEnumOnPrefix;
 
-  TermPrefixCursor(TermsEnum termsEnum, Bits liveDocs, Map<BytesRef, IntsRef> docIdsCache) {
+  /**
+   * @param maxDocFreq terms with a greater docFreq are treated as not matching, without reading
+   *                   their postings.  They still prefix longer terms.
+   */
+  TermPrefixCursor(TermsEnum termsEnum, Bits liveDocs, DocIdsCache docIdsCache,
+                   int maxDocFreq, TaggerStats stats) {
     this.termsEnum = termsEnum;
     this.liveDocs = liveDocs;
     this.docIdsCache = docIdsCache;
+    this.maxDocFreq = maxDocFreq;
+    this.stats = stats;
   }
 
   /** Appends the separator char (if not the first) plus the given word to the prefix buffer,
@@ -70,7 +86,7 @@ class TermPrefixCursor {
       //set prefixBuf to word temporary. When advance() completes, we either null out or copy.
       prefixBuf = word;
       prefixBufOnLoan = true;
-      if (seekPrefix()) {//... and we have to
+      if (seekPrefix(false)) {//... and we have to
         ensureBufIsACopy();
         return true;
       } else {
@@ -85,7 +101,7 @@ class TermPrefixCursor {
       prefixBufBuilder.append(SEPARATOR_CHAR);
       prefixBufBuilder.append(word);
       prefixBuf = prefixBufBuilder.get();
-      if (seekPrefix()) {
+      if (seekPrefix(true)) {
         return true;
       } else {
         prefixBuf = null;
@@ -94,6 +110,14 @@ class TermPrefixCursor {
     }
   }
 
+  /** Resets to the initial state so that this instance can be re-used. */
+  void reset() {
+    prefixBuf = null;
+    prefixBufOnLoan = false;
+    docIds = null;
+    termsEnumOnPrefix = false;
+  }
+
   private void ensureBufIsACopy() {
     if (!prefixBufOnLoan)
       return;
@@ -105,24 +129,44 @@ class TermPrefixCursor {
   }
 
   /** Seeks to prefixBuf or the next term that is prefixed by prefixBuf plus the separator char.
-   * Sets docIds. **/
-  private boolean seekPrefix() throws IOException {
-    TermsEnum.SeekStatus seekStatus = termsEnum.seekCeil(prefixBuf);
+   * Sets docIds.
+   * @param continuing whether prefixBuf extends the prefix of the previous successful seek **/
+  private boolean seekPrefix(boolean continuing) throws IOException {
+    final long startNanos = stats != null ? System.nanoTime() : 0;
+    TermsEnum.SeekStatus seekStatus = continuing ? seekCeilFromCurrent() : null;
+    if (seekStatus == null)
+      seekStatus = termsEnum.seekCeil(prefixBuf);
+    if (stats != null) {
+      stats.seekNanos += System.nanoTime() - startNanos;
+      stats.seeks++;
+    }
+    final boolean found = seekPrefixFound(seekStatus);
+    if (found && stats != null)
+      stats.seekHits++;
+    return found;
+  }
+
+  private boolean seekPrefixFound(TermsEnum.SeekStatus seekStatus) throws IOException {
 
     docIds = null;//invalidate
+    termsEnumOnPrefix = false;
     switch (seekStatus) {
       case END:
         return false;
 
       case FOUND:
-        postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
-        docIds = postingsEnumToIntsRef(postingsEnum, liveDocs);
-        if (docIds.length > 0) {
-          return true;
+        if (termsEnum.docFreq() <= maxDocFreq) {
+          docIds = postingsEnumToIntsRef(liveDocs);
+          if (docIds.length > 0) {
+            termsEnumOnPrefix = true;
+            return true;
+          }
+          docIds = null;
+        } else if (stats != null) {
+          stats.maxDocFreqSkips++;
         }
 
         //Pretend we didn't find it; go to next term
-        docIds = null;
         if (termsEnum.next() == null) { // case END
           return false;
         }
@@ -146,21 +190,71 @@ class TermPrefixCursor {
     throw new IllegalStateException(seekStatus.toString());
   }
 
-  /** Returns an IntsRef either cached or reading postingsEnum. Not null.
-   * @param postingsEnum*/
-  private IntsRef postingsEnumToIntsRef(PostingsEnum postingsEnum, Bits liveDocs) throws IOException {
+  /**
+   * Determines the ceiling of prefixBuf (as seekCeil would) from the current position of termsEnum
+   * if possible, which is the case when the current term (or its successor if we're on the previous
+   * prefix) is &gt;= prefixBuf. This works because prefixBuf is longer than the previous prefix it
+   * was seeked to, and no terms lie between that and the current term. For long unique names,
+   * this means only the first word needs a seek.  Returns null if a seek is needed.
+   */
+  private TermsEnum.SeekStatus seekCeilFromCurrent() throws IOException {
+    final BytesRef current;
+    if (termsEnumOnPrefix) {
+      // cheap continuation check; the successor of the previous prefix
+      current = termsEnum.next();
+      if (current == null)
+        return TermsEnum.SeekStatus.END;
+    } else {
+      current = termsEnum.term();
+    }
+    final int cmp = current.compareTo(prefixBuf);
+    if (cmp == 0)
+      return TermsEnum.SeekStatus.FOUND;
+    if (cmp > 0)
+      return TermsEnum.SeekStatus.NOT_FOUND;
+    return null;// current < prefixBuf; need to seek
+  }
+
+  /** Returns an IntsRef either cached or reading the postings of the current term. Not null. */
+  private IntsRef postingsEnumToIntsRef(Bits liveDocs) throws IOException {
     // (The cache can have empty IntsRefs)
 
     //lookup prefixBuf in a cache
     if (docIdsCache != null) {
       docIds = docIdsCache.get(prefixBuf);
+      if (stats != null)
+        stats.docIdsCacheLookups++;
       if (docIds != null) {
+        if (stats != null)
+          stats.docIdsCacheHits++;
         return docIds;
       }
     }
 
     //read postingsEnum
-    docIds = new IntsRef(termsEnum.docFreq());
+    final long startNanos = stats != null ? System.nanoTime() : 0;
+    postingsEnum = termsEnum.postings(postingsEnum, PostingsEnum.NONE);
+    docIds = readDocIds(postingsEnum, termsEnum.docFreq(), liveDocs);
+    if (stats != null)
+      stats.postingsNanos += System.nanoTime() - startNanos;
+
+    //cache
+    if (docIdsCache != null) {
+      //copy; the buffer is re-used when this cursor is
+      docIdsCache.put(BytesRef.deepCopyOf(prefixBuf), docIds);
+    }
+    return docIds;
+  }
+
+  /** Reads the docIds of postingsEnum that are in liveDocs (if not null). Not null. */
+  static IntsRef readDocIds(PostingsEnum postingsEnum, int docFreq, Bits liveDocs)
+          throws IOException {
+    if (postingsEnum instanceof TaggerPostingsFormat.InlinePostingsEnum) {
+      //the docIds are already in memory (from the terms dictionary)
+      IntsRef docIds = ((TaggerPostingsFormat.InlinePostingsEnum) postingsEnum).readDocIds(liveDocs);
+      return docIds.length == 0 ? EMPTY_INTSREF : docIds;
+    }
+    IntsRef docIds = new IntsRef(docFreq);
     int docId;
     while ((docId = postingsEnum.nextDoc()) != PostingsEnum.NO_MORE_DOCS) {
       if (liveDocs != null && !liveDocs.get(postingsEnum.docID())) {
@@ -170,13 +264,6 @@ class TermPrefixCursor {
     }
     if (docIds.length == 0)
       docIds = EMPTY_INTSREF;
-
-    //cache
-    if (docIdsCache != null) {
-      ensureBufIsACopy();
-      //clone is shallow; that's okay as the prefix isn't overwritten; it's just appended to
-      docIdsCache.put(prefixBuf.clone(), docIds);
-    }
     return docIds;
   }
 
@@ -0,0 +1,116 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import com.carrotsearch.hppc.ByteArrayList;
+import com.carrotsearch.hppc.IntArrayList;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.BytesTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+
+/**
+ * The tokens of a {@link TokenStream}, captured so that they can be replayed to multiple
+ * {@link Tagger}s (e.g. one per index segment) without analyzing the text again.  Only the
+ * attributes the Tagger looks at are captured.  Once constructed, it's immutable and so
+ * {@link #newTokenStream()} may be consumed concurrently by different threads.
+ */
+class TokenBuffer {
+
+  /** The term bytes of all tokens, concatenated. */
+  private final ByteArrayList termBytes = new ByteArrayList();
+
+  /** Array of token info comprised of 5 int fields:
+   *    [int termBytesStart, int posInc, int startOffset, int endOffset, int taggable(0 or 1)]. */
+  private final IntArrayList tokenInfo = new IntArrayList();
+
+  /**
+   * Consumes the token stream, including calling reset() and end() but not close().
+   */
+  TokenBuffer(TokenStream tokenStream) throws IOException {
+    final TermToBytesRefAttribute byteRefAtt = tokenStream.addAttribute(TermToBytesRefAttribute.class);
+    final PositionIncrementAttribute posIncAtt = tokenStream.addAttribute(PositionIncrementAttribute.class);
+    final OffsetAttribute offsetAtt = tokenStream.addAttribute(OffsetAttribute.class);
+    final TaggingAttribute taggingAtt = tokenStream.addAttribute(TaggingAttribute.class);
+    tokenStream.reset();
+    while (tokenStream.incrementToken()) {
+      final BytesRef term = byteRefAtt.getBytesRef();
+      tokenInfo.ensureCapacity(tokenInfo.size() + 5);
+      tokenInfo.add(termBytes.size(), posIncAtt.getPositionIncrement());
+      tokenInfo.add(offsetAtt.startOffset(), offsetAtt.endOffset());
+      tokenInfo.add(taggingAtt.isTaggable() ? 1 : 0);
+      termBytes.add(term.bytes, term.offset, term.length);
+    }
+    tokenStream.end();
+  }
+
+  /** The number of tokens. */
+  int size() {
+    return tokenInfo.size() / 5;
+  }
+
+  /** A new TokenStream replaying the captured tokens. */
+  TokenStream newTokenStream() {
+    return new ReplayTokenStream();
+  }
+
+  private class ReplayTokenStream extends TokenStream {
+    // note: BytesTermAttribute's impl also implements TermToBytesRefAttribute, which the Tagger wants
+    private final BytesTermAttribute termAtt = addAttribute(BytesTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+    private final TaggingAttribute taggingAtt = addAttribute(TaggingAttribute.class);
+
+    private final BytesRef term = new BytesRef();//points into termBytes
+    private int tokenIdx;
+
+    @Override
+    public void reset() throws IOException {
+      super.reset();
+      tokenIdx = 0;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+      if (tokenIdx >= size())
+        return false;
+      clearAttributes();
+      final int infoIdx = tokenIdx * 5;
+      final int termStart = tokenInfo.get(infoIdx);
+      final int termEnd = tokenIdx + 1 < size() ? tokenInfo.get(infoIdx + 5) : termBytes.size();
+      term.bytes = termBytes.buffer;
+      term.offset = termStart;
+      term.length = termEnd - termStart;
+      termAtt.setBytesRef(term);
+      posIncAtt.setPositionIncrement(tokenInfo.get(infoIdx + 1));
+      offsetAtt.setOffset(tokenInfo.get(infoIdx + 2), tokenInfo.get(infoIdx + 3));
+      taggingAtt.setTaggable(tokenInfo.get(infoIdx + 4) != 0);
+      tokenIdx++;
+      return true;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import org.apache.commons.lang.builder.CompareToBuilder;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.lucene.document.Document;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.IteratorWriter;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
@@ -45,6 +46,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
@@ -95,6 +97,8 @@ public abstract class AbstractTaggerTest extends SolrTestCaseJ4 {
     int i = 0;
     for (String n : NAMES) {
       assertU(adoc("id", ""+(i++), "name", n));
+      if (random().nextInt(10) == 0)
+        assertU(commit());//sometimes make more segments
     }
     assertU(commit());
   }
@@ -140,6 +144,12 @@ public abstract class AbstractTaggerTest extends SolrTestCaseJ4 {
   @SuppressWarnings("unchecked")
   protected TestTag[] pullTagsFromResponse(SolrQueryRequest req, SolrQueryResponse rsp ) throws IOException {
     NamedList rspValues = rsp.getValues();
+    //(tags first; if streamed then that's when tagging happens)
+    Object tagsVal = rspValues.get("tags");
+    List<NamedList> mTagsList = tagsVal instanceof IteratorWriter
+        ? ((IteratorWriter) tagsVal).toList(new ArrayList<>())
+        : (List<NamedList>) tagsVal;
+
     Map<String, String> matchingNames = new HashMap<>();
     SolrIndexSearcher searcher = req.getSearcher();
     DocList docList = (DocList) rspValues.get("response");
@@ -154,7 +164,6 @@ public abstract class AbstractTaggerTest extends SolrTestCaseJ4 {
     }
 
     //build TestTag[] aTags from response ('a' is actual)
-    List<NamedList> mTagsList = (List<NamedList>) rspValues.get("tags");
     TestTag[] aTags = new TestTag[mTagsList.size()];
     int mt_i = 0;
     for (NamedList map : mTagsList) {
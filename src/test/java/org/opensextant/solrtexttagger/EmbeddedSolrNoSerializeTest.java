@@ -35,6 +35,7 @@ import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.SolrParams;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.NamedList;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
@@ -43,6 +44,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 
@@ -84,6 +86,43 @@ public class EmbeddedSolrNoSerializeTest extends SolrTestCaseJ4 {
     assertNotNull(results.get(0));
   }
 
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testTagStreamTags() throws SolrServerException, IOException {
+    ModifiableSolrParams params = params("streamTags", "true");
+    String input = "foo boston bar";//just one tag;
+    QueryRequest req = new SolrTaggerRequest(params, input);
+    req.setPath("/tag");
+
+    QueryResponse rsp = req.process(solrServer);
+    List<NamedList> tags = (List<NamedList>) rsp.getResponse().get("tags");
+    assertEquals(1, tags.size());
+    assertEquals(4, tags.get(0).get("startOffset"));
+    assertEquals(1, rsp.getResponse().get("tagsCount"));
+    assertEquals(false, rsp.getResponse().get("truncated"));
+    assertEquals(-1, rsp.getResponse().get("partialResultsOffset"));
+    assertNull(rsp.getResponse().get("error"));
+    SolrDocumentList results= (SolrDocumentList) rsp.getResponse().get("response");
+    assertEquals(1, results.getNumFound());
+  }
+
+  /** The status of the tagging follows the streamed tags. */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testTagStreamTagsTruncated() throws SolrServerException, IOException {
+    ModifiableSolrParams params = params("streamTags", "true", "tagsLimit", "2");
+    String input = "boston boston boston";
+    QueryRequest req = new SolrTaggerRequest(params, input);
+    req.setPath("/tag");
+
+    QueryResponse rsp = req.process(solrServer);
+    List<NamedList> tags = (List<NamedList>) rsp.getResponse().get("tags");
+    assertEquals(2, tags.size());
+    assertEquals(2, rsp.getResponse().get("tagsCount"));
+    assertEquals(true, rsp.getResponse().get("truncated"));
+    assertNull(rsp.getResponse().get("error"));
+  }
+
   @SuppressWarnings("serial")
   public static class SolrTaggerRequest extends QueryRequest {
 
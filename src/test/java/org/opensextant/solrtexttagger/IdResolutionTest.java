@@ -0,0 +1,126 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.index.Term;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests looking up the uniqueKey ids of the tags' docs across several segments, with docValues
+ * on the uniqueKey field and without.
+ */
+public class IdResolutionTest extends AbstractTaggerTest {
+
+  private static final String ID_DOC_VALUES_PROP = "solr.tests.id.docValues";
+
+  // a segment each; the names repeat so that a tag has ids in several segments
+  private static final String[][][] SEGMENTS = {
+          {{"s1-boston", "Boston"}, {"s1-paris", "Paris"}},
+          {{"s2-springfield", "Springfield"}, {"s2-boston", "Boston"}},
+          {{"s3-paris", "Paris"}, {"s3-boston", "Boston"}, {"s3-springfield", "Springfield"}},
+  };
+
+  @After
+  public void afterTest() throws Exception {
+    deleteCore();
+    System.clearProperty(ID_DOC_VALUES_PROP);
+  }
+
+  @Test
+  public void testWithDocValues() throws Exception {
+    System.setProperty(ID_DOC_VALUES_PROP, "true");
+    initCore("solrconfig.xml", "schema.xml");
+    assertTrue(h.getCore().getLatestSchema().getUniqueKeyField().hasDocValues());
+    assertIdsAcrossSegments();
+  }
+
+  @Test
+  public void testWithoutDocValues() throws Exception {
+    System.setProperty(ID_DOC_VALUES_PROP, "false");
+    initCore("solrconfig.xml", "schema.xml");
+    assertFalse(h.getCore().getLatestSchema().getUniqueKeyField().hasDocValues());
+    assertIdsAcrossSegments();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void assertIdsAcrossSegments() throws Exception {
+    for (String[][] segment : SEGMENTS) {
+      for (String[] idAndName : segment) {
+        assertU(adoc("id", idAndName[0], "name", idAndName[1]));
+      }
+      assertU(commit());
+    }
+
+    final String doc = "Boston to Paris to Springfield and back to Boston";
+    final List<String> expectedNames = Arrays.asList("Boston", "Paris", "Springfield", "Boston");
+    final SolrQueryRequest req = reqDoc(doc);
+    try {
+      final NamedList rspValues = h.queryAndResponse(req.getParams().get("qt"), req).getValues();
+      final List<NamedList> tags = (List<NamedList>) rspValues.get("tags");
+      assertEquals(expectedNames.size(), tags.size());
+      for (int i = 0; i < tags.size(); i++) {
+        assertEquals(expectedIds(expectedNames.get(i)), tags.get(i).get("ids"));
+      }
+      assertEquals(7, ((DocList) rspValues.get("response")).matches());
+    } finally {
+      req.close();
+    }
+  }
+
+  /** The ids of the docs with this name, in docId order. */
+  private List<String> expectedIds(String name) throws Exception {
+    final List<String> ids = new ArrayList<>();
+    for (String[][] segment : SEGMENTS) {
+      for (String[] idAndName : segment) {
+        if (idAndName[1].equals(name))
+          ids.add(idAndName[0]);
+      }
+    }
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      final Map<String, Integer> docIds = new HashMap<>();
+      for (String id : ids) {
+        final int docId = searcher.get().getFirstMatch(new Term("id", id));
+        assertTrue(docId >= 0);
+        docIds.put(id, docId);
+      }
+      ids.sort(Comparator.comparing(docIds::get));
+    } finally {
+      searcher.decref();
+    }
+    return ids;
+  }
+}
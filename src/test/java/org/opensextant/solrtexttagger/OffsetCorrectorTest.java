@@ -0,0 +1,119 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/** Unit tests of {@link OffsetCorrector}; see {@link XmlInterpolationTest} for the corrections. */
+public class OffsetCorrectorTest extends LuceneTestCase {
+
+  private static final String DOC = "<doc><p>before <b> <em>start</em> end </b> after</p></doc>";
+
+  @Test
+  public void testCorrectPairIntoArray() throws Exception {
+    final HtmlOffsetCorrector corrector = new HtmlOffsetCorrector(DOC, null);
+    final int start = DOC.indexOf("start");
+    final int end = DOC.indexOf(" end") + 4;
+    final int[] expected = {DOC.indexOf("<em>"), end};//pulled left over "<em>"
+    assertArrayEquals(expected, corrector.correctPair(start, end).clone());
+
+    final int[] offsetPair = new int[2];
+    assertSame(offsetPair, corrector.correctPair(start, end, offsetPair));
+    assertArrayEquals(expected, offsetPair);
+    //"before <b> <em>start" isn't balanceable; " end " is before "</b>"
+    assertNull(corrector.correctPair(DOC.indexOf("before"), start + 5, new int[2]));
+
+    // concurrently; each with its own array
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      final List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (int t = 0; t < 4; t++) {
+        tasks.add(() -> {
+          final int[] pair = new int[2];
+          for (int i = 0; i < 1000; i++) {
+            final int[] result = corrector.correctPair(start, end, pair);
+            if (result == null || result[0] != expected[0] || result[1] != expected[1])
+              return false;
+          }
+          return true;
+        });
+      }
+      for (Future<Boolean> future : executor.invokeAll(tasks)) {
+        assertTrue(future.get());
+      }
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+  }
+
+  /** hasNonWhitespace uses a rank index of the non-whitespace chars; compare with a scan. */
+  @Test
+  public void testHasNonWhitespace() {
+    final char[] chars = new char[atLeast(200)];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = random().nextInt(4) == 0 ? 'x' : (random().nextBoolean() ? ' ' : '\n');
+    }
+    final String docText = new String(chars);
+    final HtmlOffsetCorrector corrector = new HtmlOffsetCorrector(docText, null);
+    for (int start = 0; start <= docText.length(); start++) {
+      for (int end = start; end <= docText.length(); end++) {
+        assertEquals(start + "," + end, docText.substring(start, end).trim().length() > 0,
+            corrector.hasNonWhitespace(start, end));
+      }
+    }
+  }
+
+  /** A subclass overriding the deprecated method is still called, with the real start offset. */
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testDeprecatedEndOffsetCorrection() {
+    final int[] calls = new int[1];
+    final HtmlOffsetCorrector corrector = new HtmlOffsetCorrector(DOC, null) {
+      @Override
+      protected int correctEndOffsetForCloseElement(int endOffset) {
+        calls[0]++;
+        return super.correctEndOffsetForCloseElement(endOffset);
+      }
+    };
+    final int start = DOC.indexOf("start");
+    // "start</em>" is pulled left to "start"
+    assertEquals(DOC.indexOf("</em>"), corrector.correctEndOffsetForCloseElement(start,
+        DOC.indexOf("</em>") + 5));
+    assertEquals(1, calls[0]);
+    // corrected the same as without the override
+    final HtmlOffsetCorrector plain = new HtmlOffsetCorrector(DOC, null);
+    final int end = DOC.indexOf("</em>") + 5;
+    assertArrayEquals(plain.correctPair(start, end).clone(), corrector.correctPair(start, end));
+    assertEquals(2, calls[0]);
+  }
+}
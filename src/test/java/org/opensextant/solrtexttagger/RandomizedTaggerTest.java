@@ -121,6 +121,8 @@ public class RandomizedTaggerTest extends AbstractTaggerTest {
   private void assertBruteForce(String input) throws Exception {
     assert input.matches(" .* ");
     baseParams.set("overlaps", "ALL");
+    baseParams.set("perSegment", random().nextBoolean());
+    baseParams.set("streamTags", random().nextBoolean());
 
     //loop through NAMES and find all tag offsets
     List<TestTag> testTags = new ArrayList<>();
@@ -0,0 +1,54 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package org.opensextant.solrtexttagger;
+
+import org.apache.solr.common.SolrException;
+import org.junit.Test;
+
+/** {@link HtmlInterpolationTest} with the HTML parsed as the analyzer reads it. */
+public class StreamingHtmlInterpolationTest extends HtmlInterpolationTest {
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    baseParams.set("htmlOffsetAdjustStreaming", "true");
+    baseParams.set("matchText", "false");//otherwise the whole input is buffered anyway
+  }
+
+  @Test
+  public void testUnclosedAncestors() throws Exception {
+    buildNames("start end");
+
+    //elements left open enclose the rest of the document
+    assertXmlTag("<html><body><p><b>start end</b> after", true);
+    assertXmlTag("<html><body><p>before <b>start</b> <em>end</em></p> after", true);
+    assertXmlTag("<html><body><p>before <b>start</b> <em>end</em> after", true);
+    assertXmlTag("<html><body><p>before start</p> end after", false);
+  }
+
+  /** matchText buffers the input anyway; it isn't silently ignored. */
+  @Test(expected = SolrException.class)
+  public void testMatchTextUnsupported() throws Exception {
+    buildNames("start end");
+    baseParams.set("matchText", "true");
+    assertXmlTag("<html><body>before start end after</body></html>", true);
+  }
+}
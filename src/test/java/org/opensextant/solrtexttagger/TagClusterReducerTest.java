@@ -0,0 +1,157 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import com.carrotsearch.randomizedtesting.annotations.Repeat;
+import com.carrotsearch.randomizedtesting.generators.RandomNumbers;
+import org.apache.lucene.util.LuceneTestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Randomly generate clusters of tags and verify the reducers give the same output as the
+ * simple (quadratic) algorithms they replaced.
+ */
+@Repeat(iterations = 10)
+public class TagClusterReducerTest extends LuceneTestCase {
+
+  @Test
+  public void testNoSub() {
+    for (int i = 0; i < 100; i++) {
+      List<int[]> tags = randomTags();
+      assertEquals(tags.toString(),
+          reduce(NO_SUB_REFERENCE, tags), reduce(TagClusterReducer.NO_SUB, tags));
+    }
+  }
+
+  @Test
+  public void testLongestDominantRight() {
+    for (int i = 0; i < 100; i++) {
+      List<int[]> tags = randomTags();
+      assertEquals(tags.toString(),
+          reduce(LONGEST_DOMINANT_RIGHT_REFERENCE, tags),
+          reduce(TagClusterReducer.LONGEST_DOMINANT_RIGHT, tags));
+    }
+  }
+
+  /** Tags in start offset order as [startOffset, endOffset]; ties are in no particular order. */
+  private List<int[]> randomTags() {
+    final Random R = random();
+    final int numTags = RandomNumbers.randomIntBetween(R, 1, R.nextBoolean() ? 8 : 200);
+    final int maxStart = RandomNumbers.randomIntBetween(R, 1, numTags * 3);
+    List<int[]> tags = new ArrayList<>(numTags);
+    for (int i = 0; i < numTags; i++) {
+      if (i > 0 && R.nextInt(10) == 0) {//duplicate offsets
+        tags.add(tags.get(R.nextInt(i)).clone());
+        continue;
+      }
+      int start = R.nextInt(maxStart);
+      tags.add(new int[]{start, start + RandomNumbers.randomIntBetween(R, 1, 20)});
+    }
+    Collections.shuffle(tags, R);
+    tags.sort((a, b) -> Integer.compare(a[0], b[0]));//stable
+    return tags;
+  }
+
+  /** Reduces the tags, returning the remaining tags as "start-end#index". */
+  private static List<String> reduce(TagClusterReducer reducer, List<int[]> tags) {
+    final TagLL[] head = new TagLL[1];
+    TagLL tail = null;
+    for (int i = 0; i < tags.size(); i++) {
+      TagLL tag = new TagLL(head, null, tags.get(i)[0], tags.get(i)[1], i);
+      if (tail == null)
+        head[0] = tag;
+      else
+        tail.addAfterLL(tag);
+      tail = tag;
+    }
+    reducer.reduce(head);
+    List<String> result = new ArrayList<>();
+    for (TagLL t = head[0]; t != null; t = t.nextTag) {
+      result.add(t.startOffset + "-" + t.endOffset + "#" + t.value);
+    }
+    return result;
+  }
+
+  /** The original NO_SUB. */
+  private static final TagClusterReducer NO_SUB_REFERENCE = new TagClusterReducer() {
+    @Override
+    public void reduce(TagLL[] head) {
+      //loop forward over all tags
+      for (TagLL tag = head[0].nextTag; tag != null; tag = tag.nextTag) {
+        //loop backwards over prev tags from this tag
+        for (TagLL tPrev = tag.prevTag; tPrev != null; tPrev = tPrev.prevTag) {
+          assert tPrev.startOffset <= tag.startOffset;
+          //if a previous tag's endOffset is <= this one's, tForward can be removed
+          if (tPrev.endOffset >= tag.endOffset) {
+            tag.removeLL();
+            break;
+          } else if (tPrev.startOffset == tag.startOffset) {
+            tPrev.removeLL();
+            //continue; 'tag' is still valid
+          }
+        }
+      }
+    }
+  };
+
+  /** The original LONGEST_DOMINANT_RIGHT. */
+  private static final TagClusterReducer LONGEST_DOMINANT_RIGHT_REFERENCE = new TagClusterReducer() {
+    @Override
+    public void reduce(TagLL[] head) {
+
+      //--Optimize for common single-tag case
+      if (head[0].nextTag == null)
+        return;
+
+      while (true) {
+        //--Find longest not already marked
+        TagLL longest = null;
+        for (TagLL t = head[0]; t != null; t = t.nextTag) {
+          if (!t.mark && (longest == null || t.charLen() >= longest.charLen()))
+            longest = t;
+        }
+        if (longest == null)
+          break;
+        //--Mark longest (so we return it eventually)
+        longest.mark = true;
+        //--Remove tags overlapping this longest
+        for (TagLL t = head[0]; t != null; t = t.nextTag) {
+          if (t.mark)
+            continue;
+
+          if (t.overlaps(longest)) {
+            t.removeLL();
+          } else if (t.startOffset >= longest.endOffset) {
+            break;//no subsequent can possibly overlap
+          }
+        }
+      }//loop
+      assert head[0].mark;
+    }
+  };
+}
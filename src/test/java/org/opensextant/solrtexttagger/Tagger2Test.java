@@ -22,11 +22,31 @@
 
 package org.opensextant.solrtexttagger;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.QueryTimeout;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Test the {@link org.opensextant.solrtexttagger.TaggerRequestHandler}.
@@ -62,6 +82,206 @@ public class Tagger2Test extends AbstractTaggerTest {
 
   }
 
+  /** Names sharing leading words; exercises TermPrefixCursor continuing from its current term. */
+  @Test
+  public void testSharedPrefixes() throws Exception {
+    buildNames("New York", "New York City", "New Yorker", "New Zealand", "Newark");
+
+    assertTags("He moved from New York City to Newark",
+        "New York City", "Newark");
+
+    assertTags("A New Yorker in New Zealand",
+        "New Yorker", "New Zealand");
+
+    assertTags("The New York Zoo",
+        "New York");
+
+    assertTags("Newark New York New",
+        "Newark", "New York");
+  }
+
+  /** The handler's metrics of the phases of tagging. */
+  @Test
+  public void testMetrics() throws Exception {
+    buildNames("New York", "New York City", "Newark");
+    final Map<String, Metric> metrics = h.getCoreContainer().getMetricManager()
+            .registry(h.getCore().getCoreMetricManager().getRegistryName()).getMetrics();
+    final String prefix = "QUERY./tag.";
+    final long tokens = ((Counter) metrics.get(prefix + "tokens")).getCount();
+    final long seekHits = ((Counter) metrics.get(prefix + "seekHits")).getCount();
+    final long tags = ((Counter) metrics.get(prefix + "tags")).getCount();
+    final long analyses = ((Histogram) metrics.get(prefix + "analysisTime")).getCount();
+
+    assertTags("He moved from New York City to Newark", "New York City", "Newark");
+
+    assertEquals(tokens + 8, ((Counter) metrics.get(prefix + "tokens")).getCount());
+    assertTrue(((Counter) metrics.get(prefix + "seekHits")).getCount() >= seekHits + 4);
+    assertEquals(tags + 2, ((Counter) metrics.get(prefix + "tags")).getCount());
+    assertEquals(analyses + 1, ((Histogram) metrics.get(prefix + "analysisTime")).getCount());
+    assertNotNull(metrics.get(prefix + "docIdsCacheHitRatio"));
+  }
+
+  /** The matching docs are in docId order across segments, whether there are few of them (kept as
+   * sorted docIds) or many (upgraded to a bitset). */
+  @Test
+  public void testResponseDocsAcrossSegments() throws Exception {
+    deleteByQueryAndGetVersion("*:*", null);
+    final int numNames = 20;
+    for (int i = 0; i < numNames; i++) {
+      assertU(adoc("id", "" + i, "name", "Name" + i));
+      assertU(commit());//a segment each
+    }
+    for (int i = numNames; i < 1000; i++) {//non-matching, so few matches are sparse
+      assertU(adoc("id", "" + i, "name", "Other"));
+    }
+    assertU(commit());
+
+    for (int numTagged : new int[] {3, numNames}) {
+      StringBuilder doc = new StringBuilder();
+      for (int i = numTagged - 1; i >= 0; i--) {//reverse order
+        doc.append("Name").append(i).append(' ');
+      }
+      final NamedList rspValues = tagResponse(reqDoc(doc.toString(),
+              "perSegment", "" + random().nextBoolean()));
+      final DocList docList = (DocList) rspValues.get("response");
+      assertEquals(numTagged, docList.matches());
+      int lastDocId = -1;
+      for (DocIterator iter = docList.iterator(); iter.hasNext(); ) {
+        final int docId = iter.nextDoc();
+        assertTrue(docId > lastDocId);
+        lastDocId = docId;
+      }
+    }
+  }
+
+  /** Tagging stops at tagsLimit, and the response says so. */
+  @Test
+  public void testTagsLimit() throws Exception {
+    buildNames("New York City", "Newark", "Boston");
+    final String doc = "From New York City to Newark to Boston";
+
+    assertTags(reqDoc(doc, "tagsLimit", "2"), tt(doc, "New York City"), tt(doc, "Newark"));
+    assertEquals(Boolean.TRUE, tagResponse(reqDoc(doc, "tagsLimit", "1")).get("truncated"));
+    assertNull(tagResponse(reqDoc(doc, "tagsLimit", "3")).get("truncated"));//exactly the limit
+    assertNull(tagResponse(reqDoc(doc, "tagsLimit", "4")).get("truncated"));
+  }
+
+  /** idsLimit keeps the top ids of a tag by idsSortField, or else the first. */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testIdsLimit() throws Exception {
+    deleteByQueryAndGetVersion("*:*", null);
+    assertU(adoc("id", "1", "name", "Springfield", "population", "100"));
+    assertU(adoc("id", "2", "name", "Springfield", "population", "5000"));
+    assertU(adoc("id", "3", "name", "Springfield"));
+    assertU(adoc("id", "4", "name", "Springfield", "population", "5000"));
+    assertU(adoc("id", "5", "name", "Springfield", "population", "10"));
+    assertU(commit());
+    final String doc = "I live in Springfield";
+
+    assertIds(Arrays.asList("2", "4"),
+            tagResponse(reqDoc(doc, "idsLimit", "2", "idsSortField", "population")));
+    assertIds(Arrays.asList("1", "2", "4"),
+            tagResponse(reqDoc(doc, "idsLimit", "3", "idsSortField", "population")));
+    assertIds(Arrays.asList("1", "2"), tagResponse(reqDoc(doc, "idsLimit", "2")));
+    assertIds(Arrays.asList("1", "2", "3", "4", "5"), tagResponse(reqDoc(doc)));
+
+    // a repeated name reuses the top ids of the first
+    final NamedList rspValues = tagResponse(reqDoc("Springfield to Springfield",
+            "idsLimit", "2", "idsSortField", "population"));
+    final List<NamedList> tags = (List<NamedList>) rspValues.get("tags");
+    assertEquals(2, tags.size());
+    for (NamedList tag : tags) {
+      assertEquals(Arrays.asList("2", "4"), tag.get("ids"));
+    }
+    assertEquals(2, ((DocList) rspValues.get("response")).matches());
+  }
+
+  /** Names in more than maxDocFreq docs don't match, but longer names they start still do. */
+  @Test
+  public void testMaxDocFreq() throws Exception {
+    buildNames("New", "New", "New", "New York");
+    final String doc = "New York and New";
+    assertTags(doc, "New York", "New");
+    assertTags(reqDoc(doc, "maxDocFreq", "2"), tt(doc, "New York"));
+  }
+
+  /** Asserts the ids of the one tag, and that they are the docs of the response. */
+  @SuppressWarnings("unchecked")
+  private void assertIds(List<String> expectedIds, NamedList rspValues) {
+    List<NamedList> tags = (List<NamedList>) rspValues.get("tags");
+    assertEquals(1, tags.size());
+    assertEquals(expectedIds, tags.get(0).get("ids"));
+    assertEquals(expectedIds.size(), ((DocList) rspValues.get("response")).matches());
+  }
+
+  private NamedList tagResponse(SolrQueryRequest req) throws Exception {
+    try {
+      return h.queryAndResponse(req.getParams().get("qt"), req).getValues();
+    } finally {
+      req.close();
+    }
+  }
+
+  /** The Tagger stops at a token when its QueryTimeout says to, keeping the tags before it. */
+  @Test
+  public void testQueryTimeout() throws Exception {
+    buildNames("London");
+    StringBuilder doc = new StringBuilder("London");
+    for (int i = 0; i < Tagger.TIMEOUT_CHECK_INTERVAL * 2; i++) {
+      doc.append(" x");
+    }
+    doc.append(" London");
+
+    final List<Integer> startOffsets = new ArrayList<>();
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      LeafReader reader = searcher.get().getSlowAtomicReader();
+      Analyzer analyzer = h.getCore().getLatestSchema().getField("name_tag").getType().getQueryAnalyzer();
+      final boolean[] ended = new boolean[1];
+      try (TokenStream tokenStream = new TokenFilter(analyzer.tokenStream("", doc.toString())) {
+        @Override
+        public boolean incrementToken() throws IOException {
+          return input.incrementToken();
+        }
+
+        @Override
+        public void end() throws IOException {
+          super.end();
+          ended[0] = true;
+        }
+      }) {
+        Tagger tagger = new Tagger(reader.terms("name_tag"), reader.getLiveDocs(), tokenStream,
+                TagClusterReducer.NO_SUB, false, false) {
+          @Override
+          protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
+            startOffsets.add(startOffset);
+          }
+        };
+        tagger.setQueryTimeout(new QueryTimeout() {
+          int checks = 0;
+
+          @Override
+          public boolean shouldExit() {
+            return ++checks > 1;//the check after the first interval
+          }
+
+          public boolean isTimeoutEnabled() {
+            return true;
+          }
+        });
+        tagger.process();
+        assertTrue(tagger.isTimedOut());
+        assertEquals(Collections.singletonList(0), startOffsets);
+        // "London" and 255 " x" were tagged
+        assertEquals(6 + (Tagger.TIMEOUT_CHECK_INTERVAL - 1) * 2, tagger.getPendingStartOffset());
+        assertTrue(ended[0]);//though not fully consumed
+      }
+    } finally {
+      searcher.decref();
+    }
+  }
+
   // As of Lucene/Solr 4.9, StandardTokenizer never does this anymore (reported to Lucene dev-list,
   // Jan 26th 2015.  Honestly it's not particularly important to us but it renders this test
   // pointless.
@@ -0,0 +1,157 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Metric;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Test the tagger's per-searcher caches and the {@link TaggerWarmingListener}, which the basic
+ * solrconfig leaves out.
+ */
+public class TaggerCachesTest extends AbstractTaggerTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-caches.xml", "schema.xml");
+  }
+
+  /** The TaggerWarmingListener tags recently tagged texts again on a new searcher. */
+  @Test
+  public void testWarmingReplay() throws Exception {
+    buildNames("New York City", "Newark");
+    final String doc = "Warming up from New York City to Newark";
+    assertTags(doc, "New York City", "Newark");
+    final Map<String, Metric> metrics = h.getCoreContainer().getMetricManager()
+            .registry(h.getCore().getCoreMetricManager().getRegistryName()).getMetrics();
+    final long requests = ((Counter) metrics.get("QUERY./tag.requests")).getCount();
+    final long tags = ((Counter) metrics.get("QUERY./tag.tags")).getCount();
+    assertU(adoc("id", "100", "name", "Boston"));
+    assertU(commit());
+    // the warming isn't user traffic
+    assertEquals(requests, ((Counter) metrics.get("QUERY./tag.requests")).getCount());
+    assertEquals(tags, ((Counter) metrics.get("QUERY./tag.tags")).getCount());
+
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      // only the warming could have filled the new searcher's cache
+      SolrCache cache = searcher.get().getCache(TaggerRequestHandler.RESULT_CACHE);
+      assertTrue(cache.size() > 0);
+      final int size = cache.size();
+      assertTags(doc, "New York City", "Newark");//a hit
+      assertEquals(size, cache.size());
+    } finally {
+      searcher.decref();
+    }
+  }
+
+  /** The taggerResultCache returns the same result for the same text and params. */
+  @Test
+  public void testResultCache() throws Exception {
+    buildNames("New York City", "Newark");
+    final String doc = "From New York City to Newark";
+    assertTags(doc, "New York City", "Newark");
+
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      SolrCache cache = searcher.get().getCache(TaggerRequestHandler.RESULT_CACHE);
+      final int size = cache.size();
+      assertTags(doc, "New York City", "Newark");//a hit
+      assertEquals(size, cache.size());
+      assertTags(reqDoc(doc, "tagsLimit", "1"), tt(doc, "New York City"));//other params
+      assertEquals(size + 1, cache.size());
+    } finally {
+      searcher.decref();
+    }
+  }
+
+  /** The fq bits are cached per distinct list of filter queries, and reused when it recurs. */
+  @Test
+  public void testFilterCache() throws Exception {
+    buildNames("Boston", "London");
+    final String doc = "From Boston to London";
+
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      SolrCache cache = searcher.get().getCache(TaggerRequestHandler.FILTER_CACHE);
+      final int size = cache.size();
+      assertTags(reqDoc(doc, "fq", "name:Boston"), tt(doc, "Boston"));
+      assertEquals(size + 1, cache.size());
+      assertTags(reqDoc(doc, "fq", "name:London"), tt(doc, "London"));
+      assertEquals(size + 2, cache.size());
+      assertTags(reqDoc(doc, "fq", "name:Boston"), tt(doc, "Boston"));//a hit
+      assertEquals(size + 2, cache.size());
+      assertTags(reqDoc(doc, "fq", "name:Boston", "fq", "name:London"));//another list
+      assertEquals(size + 3, cache.size());
+    } finally {
+      searcher.decref();
+    }
+  }
+
+  /** The docIds cache is auto-warmed into a new searcher; it mustn't return stale docIds. */
+  @Test
+  public void testDocIdsCacheAfterDelete() throws Exception {
+    baseParams.set("overlaps", "ALL");
+    baseParams.set("perSegment", ""+random().nextBoolean());
+    buildNames("London", "London Business School", "Boston", "City of London");
+
+    String doc = "City of London Business School in Boston";
+    assertTags(doc, "City of London", "London", "London Business School", "Boston");
+
+    assertU(delI(""+NAMES.indexOf("London")));
+    assertU(commit());
+    assertTags(doc, "City of London", "London Business School", "Boston");
+  }
+
+  /** Segment-level entries of the docIds cache are warmed into the same segment of a new searcher,
+   * even when the segment ordinals shift. */
+  @Test
+  public void testDocIdsCacheAfterSegmentDropped() throws Exception {
+    baseParams.set("overlaps", "ALL");
+    baseParams.set("perSegment", "true");
+
+    // each name in its own segment
+    deleteByQueryAndGetVersion("*:*", null);
+    NAMES = Arrays.asList("London", "London Business School", "Boston", "City of London");
+    for (int i = 0; i < NAMES.size(); i++) {
+      assertU(adoc("id", ""+i, "name", NAMES.get(i)));
+      assertU(commit());
+    }
+
+    String doc = "City of London Business School in Boston";
+    assertTags(doc, "City of London", "London", "London Business School", "Boston");
+
+    // London's segment, the first, is dropped; the others' ordinals shift down
+    assertU(delI(""+NAMES.indexOf("London")));
+    assertU(commit());
+    assertTags(doc, "City of London", "London Business School", "Boston");
+  }
+
+}
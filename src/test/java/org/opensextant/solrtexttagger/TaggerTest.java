@@ -22,13 +22,31 @@
 
 package org.opensextant.solrtexttagger;
 
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.util.ThreadInterruptedException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.ContentStreamBase;
+import org.apache.solr.common.util.ExecutorUtil;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequestBase;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -272,6 +290,139 @@ public class TaggerTest extends AbstractTaggerTest {
         tt(doc, "Boston", 0, N.Boston));
   }
 
+  /** matchText is cut from a sliding window of the input; it must be right far into it too. */
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testMatchTextLongInput() throws Exception {
+    baseParams.set("qt", "/tag");
+    baseParams.set("overlaps", "NO_SUB");
+    indexAndBuild();
+
+    StringBuilder buf = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      buf.append(i % 7 == 0 ? "City of London Business School " : "some filler words ");
+    }
+    String doc = buf.toString();
+    SolrQueryRequest req = reqDoc(doc, "matchText", "true", "tagsLimit", "100000");
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse("/tag", req);
+      List<NamedList> tags = (List<NamedList>) rsp.getValues().get("tags");
+      assertEquals(2 * 286, tags.size());
+      for (NamedList tag : tags) {
+        int startOffset = (Integer) tag.get("startOffset");
+        int endOffset = (Integer) tag.get("endOffset");
+        assertEquals(doc.substring(startOffset, endOffset), tag.get("matchText"));
+      }
+    } finally {
+      req.close();
+    }
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void testBatch() throws Exception {
+    baseParams.set("qt", "/tag");
+    baseParams.set("overlaps", "NO_SUB");
+    indexAndBuild();
+
+    // a JSON array then a JSON string; then plain text
+    ContentStreamBase.StringStream json =
+        new ContentStreamBase.StringStream("[\"london\", \"boston in london\"]\n\"nothing\"");
+    json.setContentType("application/json");
+    ContentStreamBase.StringStream text = new ContentStreamBase.StringStream("city of london");
+    SolrQueryRequestBase req = new SolrQueryRequestBase(h.getCore(),
+        SolrParams.wrapDefaults(params("batch", "true"), baseParams)) {};
+    req.setContentStreams(Arrays.asList(json, text));
+    try {
+      SolrQueryResponse rsp = h.queryAndResponse("/tag", req);
+      List<NamedList> results = (List<NamedList>) rsp.getValues().get("batch");
+      assertEquals(Arrays.asList(1, 2, 0, 1),
+          results.stream().map(r -> r.get("tagsCount")).collect(Collectors.toList()));
+      NamedList tag = ((List<NamedList>) results.get(1).get("tags")).get(1);
+      assertEquals(10, tag.get("startOffset"));
+      assertEquals(16, tag.get("endOffset"));
+      // London, Boston, City of London
+      assertEquals(3, ((DocList) rsp.getValues().get("response")).matches());
+    } finally {
+      req.close();
+    }
+  }
+
+  @Test
+  public void testPerSegment() throws Exception {
+    baseParams.set("qt", "/tag");
+    baseParams.set("overlaps", "NO_SUB");
+    baseParams.set("perSegment", "true");
+
+    // each name in its own segment
+    deleteByQueryAndGetVersion("*:*", null);
+    NAMES = Arrays.stream(N.values()).map(N::getName).collect(Collectors.toList());
+    for (N name : N.values()) {
+      assertU(adoc("id", ""+name.getId(), "name", name.getName()));
+      assertU(commit());
+    }
+
+    String doc = "City of London Business School in Boston";
+    assertTags(reqDoc(doc),
+        tt(doc, "City of London", 0, N.City_of_London),
+        tt(doc, "London Business School", 0, N.London_Business_School),
+        tt(doc, "Boston", 0, N.Boston));
+
+    baseParams.set("overlaps", "ALL");
+    assertTags(reqDoc(doc),
+        tt(doc, "City of London", 0, N.City_of_London),
+        tt(doc, "London", 0, N.London),
+        tt(doc, "London Business School", 0, N.London_Business_School),
+        tt(doc, "Boston", 0, N.Boston));
+  }
+
+  /** When tagging one segment fails, the error is thrown only once the other segments' tasks are
+   * done, since the caller then releases the searcher they use. */
+  @Test
+  public void testPerSegmentFailureWaitsForTasks() throws Exception {
+    deleteByQueryAndGetVersion("*:*", null);
+    for (N name : N.values()) {
+      assertU(adoc("id", ""+name.getId(), "name", name.getName()));
+      assertU(commit());
+    }
+
+    final AtomicInteger running = new AtomicInteger();
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+    final Analyzer analyzer = h.getCore().getLatestSchema().getField("name_tag").getType().getQueryAnalyzer();
+    final RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try (TokenStream tokenStream = analyzer.tokenStream("name_tag", "City of London Business School")) {
+      final List<LeafReaderContext> leaves = searcher.get().getIndexReader().leaves();
+      assertTrue(leaves.size() > 1);
+      MultiSegmentTagger tagger = new MultiSegmentTagger(leaves, "name_tag", null, tokenStream,
+          TagClusterReducer.ALL, false, false) {
+        @Override
+        SegmentTags tagSegment(LeafReaderContext leaf) throws IOException {
+          if (leaf.ord == 0)
+            throw new IOException("test");
+          running.incrementAndGet();
+          try {
+            Thread.sleep(100);
+            return super.tagSegment(leaf);
+          } catch (InterruptedException e) {
+            throw new ThreadInterruptedException(e);
+          } finally {
+            running.decrementAndGet();
+          }
+        }
+
+        @Override
+        protected void tagCallback(int startOffset, int endOffset, Object docIdsKey) {
+        }
+      };
+      tagger.setExecutor(executor);
+      expectThrows(IOException.class, tagger::process);
+      assertEquals(0, running.get());
+    } finally {
+      searcher.decref();
+      ExecutorUtil.shutdownAndAwaitTermination(executor);
+    }
+  }
+
   private TestTag tt(String doc, String substring, int substringIndex, N name) {
     assert substringIndex == 0;
 
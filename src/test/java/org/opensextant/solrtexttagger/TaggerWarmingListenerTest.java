@@ -0,0 +1,66 @@
+/*
+  This software was produced for the U. S. Government
+  under Contract No. W15P7T-11-C-F600, and is
+  subject to the Rights in Noncommercial Computer Software
+  and Noncommercial Computer Software Documentation
+  Clause 252.227-7014 (JUN 1995)
+
+  Copyright 2013 The MITRE Corporation. All Rights Reserved.
+
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package org.opensextant.solrtexttagger;
+
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Test the {@link TaggerWarmingListener}.  Its own core, so that the test sees the first commit.
+ */
+public class TaggerWarmingListenerTest extends AbstractTaggerTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-caches.xml", "schema.xml");
+  }
+
+  /** Texts tagged since the core loaded are replayed on the first commit. */
+  @Test
+  public void testReplayOnFirstCommit() throws Exception {
+    final String doc = "Warming up from New York City to Newark";
+    // nothing is indexed yet, so this fails, but the text is recorded
+    SolrQueryRequest req = reqDoc(doc);
+    try {
+      expectThrows(Exception.class, () -> h.queryAndResponse(req.getParams().get("qt"), req));
+    } finally {
+      req.close();
+    }
+
+    buildNames("New York City", "Newark");
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      // only the warming could have filled the new searcher's cache
+      SolrCache cache = searcher.get().getCache(TaggerRequestHandler.RESULT_CACHE);
+      assertEquals(1, cache.size());
+      assertTags(doc, "New York City", "Newark");//a hit
+      assertEquals(1, cache.size());
+    } finally {
+      searcher.decref();
+    }
+  }
+}
@@ -85,8 +85,45 @@ public class XmlInterpolationTest extends AbstractTaggerTest {
     assertXmlTag("<doc>before <em a='A' b='B'>start</em> <b a='A' b='B'>end</b> after</doc>", true);
   }
 
+  /** A tag that the offset correction discards doesn't count toward tagsLimit. */
+  @Test
+  public void testTagsLimitWithDiscardedTag() throws Exception {
+    buildNames("start end", "after");
+    final String docText = "<doc><p>before start</p> end after, <b>after</b> and after</doc>";
+    final SolrQueryRequest req = reqDoc(docText, "tagsLimit", "2");
+    try {
+      final SolrQueryResponse rsp = h.queryAndResponse(req.getParams().get("qt"), req);
+      final TestTag[] testTags = pullTagsFromResponse(req, rsp);
+      assertEquals(2, testTags.length);//not "start end", which spans </p>
+      for (TestTag tag : testTags) {
+        assertEquals("after", tag.docName);
+      }
+      assertEquals(Boolean.TRUE, rsp.getValues().get(TaggerRequestHandler.TRUNCATED));
+    } finally {
+      req.close();
+    }
+
+    // nor does one past the limit
+    final String docText2 = "<doc>after <p>before start</p> end</doc>";
+    final SolrQueryRequest req2 = reqDoc(docText2, "tagsLimit", "1");
+    try {
+      final SolrQueryResponse rsp = h.queryAndResponse(req2.getParams().get("qt"), req2);
+      assertEquals(1, pullTagsFromResponse(req2, rsp).length);
+      assertNull(rsp.getValues().get(TaggerRequestHandler.TRUNCATED));
+    } finally {
+      req2.close();
+    }
+  }
+
   @Test(expected = SolrException.class)
   public void testInvalidXml() throws Exception {
+    buildNames("notXml");//the XML is only parsed if there are tags to correct
+    assertXmlTag("notXml", false);
+  }
+
+  @Test
+  public void testInvalidXmlWithoutTags() throws Exception {
+    buildNames("start end");
     assertXmlTag("notXml", false);
   }
 